@@ -2,8 +2,10 @@ package template;
 
 /* import table */
 import logist.simulation.Vehicle;
+import logist.LogistSettings;
 import logist.agent.Agent;
 import logist.behavior.DeliberativeBehavior;
+import logist.config.Parsers;
 import logist.plan.Plan;
 import logist.task.Task;
 import logist.task.TaskDistribution;
@@ -11,9 +13,16 @@ import logist.task.TaskSet;
 import logist.topology.Topology;
 import logist.topology.Topology.City;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * An optimal planner for one vehicle.
@@ -21,7 +30,24 @@ import java.util.Arrays;
 @SuppressWarnings("unused")
 public class DeliberativeTemplate implements DeliberativeBehavior {
 
-	enum Algorithm { BFS, ASTAR, NAIVE }
+	enum Algorithm { BFS, ASTAR, WASTAR, ARASTAR, NAIVE }
+	
+	/* the lower bounds of the distance left, used by A* and to prune BFS */
+	enum HeuristicName { NONE, DELIVERY, TRIP, MST }
+	
+	// Default Values
+	// Inflation of the heuristic for WASTAR and for the first search of ARASTAR
+	private static final double WEIGHT = 3;
+	// Decrease of the weight between two searches of ARASTAR
+	private static final double WEIGHT_STEP = 0.5;
+	// Fraction of timeout_plan given to ARASTAR
+	private static final double TIME_FRACTION = 0.8;
+	// Used when the configuration file cannot be read
+	private static final long TIMEOUT_PLAN = 60000;
+	// Threads expanding the levels of BFS (1 for the sequential search)
+	private static final int THREADS = 1;
+	// Smallest number of nodes given to a thread of the parallel BFS
+	private static final int MIN_PART = 256;
 	
 	/* Environment */
 	Topology topology;
@@ -30,15 +56,35 @@ public class DeliberativeTemplate implements DeliberativeBehavior {
 	/* the properties of the agent */
 	Agent agent;
 	int capacity;
+	
+	/* the shortest distances and paths between the cities */
+	Distances distances;
 
 	/* the planning class */
 	Algorithm algorithm;
+	HeuristicName heuristicName;
+	Heuristic heuristic;
+	double weight;
+	
+	int threads;
+	
+	/* the plan method cannot execute more than timeout_plan milliseconds */
+	long timeout_plan;
+	
+	/* replanning : the tasks on board at the start of the current plan and the last plan */
+	TaskSet carriedTasks;
+	Task[] last_tasks; // the actions of the last plan are indices in last_tasks, like in the nodes
+	int[] last_actions;
+	int last_start; // id of the city where the last plan started
+	boolean last_optimal;
+	double bound = Double.POSITIVE_INFINITY; // distance of the last plan adapted to the current tasks
 	
 	@Override
 	public void setup(Topology topology, TaskDistribution td, Agent agent) {
 		this.topology = topology;
 		this.td = td;
 		this.agent = agent;
+		this.distances = Distances.of(topology);
 		
 		// initialize the planner
 		int capacity = agent.vehicles().get(0).capacity();
@@ -46,7 +92,21 @@ public class DeliberativeTemplate implements DeliberativeBehavior {
 		
 		// Throws IllegalArgumentException if algorithm is unknown
 		algorithm = Algorithm.valueOf(algorithmName.toUpperCase());
-
+		
+		String heuristicName = agent.readProperty("heuristic", String.class, "MST");
+		this.heuristicName = HeuristicName.valueOf(heuristicName.toUpperCase());
+		heuristic = makeHeuristic(this.heuristicName);
+		weight = agent.readProperty("weight", Double.class, WEIGHT);
+		threads = agent.readProperty("threads", Integer.class, THREADS);
+		
+		LogistSettings ls = null;
+		try {
+			ls = Parsers.parseSettings("config" + File.separator + "settings_default.xml");
+		}
+		catch (Exception exc) {
+			System.out.println("There was a problem loading the configuration file.");
+		}
+		timeout_plan = (ls == null) ? TIMEOUT_PLAN : ls.get(LogistSettings.TimeoutKey.PLAN);
 		
 		// ...
 	}
@@ -55,12 +115,28 @@ public class DeliberativeTemplate implements DeliberativeBehavior {
 	public Plan plan(Vehicle vehicle, TaskSet tasks) {
 		Plan plan;
 		System.out.println(algorithm);
+		// the tasks of a cancelled plan stay on board until they are delivered
+		carriedTasks = vehicle.getCurrentTasks();
+		
+		// After a cancellation the last plan may still be optimal, else it bounds the new search.
+		if (algorithm != Algorithm.NAIVE) {
+			plan = Replan(vehicle, tasks);
+			if (plan != null) {
+				return plan;
+			}
+		}
 
 		// Compute the plan with the selected algorithm.
 		switch (algorithm) {
 		case ASTAR:
 			// ...
-			plan = AstarPlan(vehicle, tasks);
+			plan = AstarPlan(vehicle, tasks, 1);
+			break;
+		case WASTAR:
+			plan = AstarPlan(vehicle, tasks, weight);
+			break;
+		case ARASTAR:
+			plan = ARAstarPlan(vehicle, tasks);
 			break;
 		case BFS:
 			
@@ -81,16 +157,26 @@ public class DeliberativeTemplate implements DeliberativeBehavior {
 		City current = vehicle.getCurrentCity();
 		Plan plan = new Plan(current);
 		double distance = 0;
+		// deliver the tasks on board first
+		if (carriedTasks != null) {
+			for (Task task : carriedTasks) {
+				distance += distances.distance(current, task.deliveryCity);
+				for (City city : distances.path(current, task.deliveryCity))
+					plan.appendMove(city);
+				plan.appendDelivery(task);
+				current = task.deliveryCity;
+			}
+		}
 		for (Task task : tasks) {
-			distance += current.distanceTo(task.pickupCity) + task.pickupCity.distanceTo(task.deliveryCity);
+			distance += distances.distance(current, task.pickupCity) + distances.distance(task.pickupCity, task.deliveryCity);
 			// move: current city => pickup location
-			for (City city : current.pathTo(task.pickupCity))
+			for (City city : distances.path(current, task.pickupCity))
 				plan.appendMove(city);
 
 			plan.appendPickup(task);
 
 			// move: pickup location => delivery location
-			for (City city : task.path())
+			for (City city : distances.path(task.pickupCity, task.deliveryCity))
 				plan.appendMove(city);
 
 			plan.appendDelivery(task);
@@ -112,417 +198,997 @@ public class DeliberativeTemplate implements DeliberativeBehavior {
 		return fact;
 	}
 	
-	//Remove an integer value of a matrix knowing the index
-	private int[] removefromarr(int [] arr, int index) {
-		// Create another array of size one less 
-        int[] anotherArray = new int[arr.length - 1]; 
-  
-        // Copy the elements except the index 
-        // from original array to the other array 
-        for (int i = 0, k = 0; i < arr.length; i++) { 
-  
-            // if the index is 
-            // the removal element index 
-            if (i == index) { 
-                continue; 
-            } 
-  
-            // if the index is not 
-            // the removal element index 
-            anotherArray[k++] = arr[i]; 
-        } 
-  
-        // return the resultant array 
-        return anotherArray; 
-    } 
-	
-	//Find the index of the minimum value of an ArrayList
-	private int amin(ArrayList<Double> arr) {
-		int idx = 0;
-		double min = arr.get(0);
-		for (int i = 0; i<arr.size(); i++) {
-			if (arr.get(i) < min) {
-				min = arr.get(i);
-				idx = i;
-			}
-		}
-		return idx;
+	//Search nodes packed in primitive arrays : the node k is at the index k of each array.
+	//The tasks are the bits of their index in the task list.
+	class Nodes {
+		long[] pending; // tasks not picked up yet
+		long[] carried; // tasks picked up but not delivered
+		short[] city; // id of the current city
+		int[] load;
+		double[] cost; // distance from the start
+		int[] parent; // index of the parent node, -1 for the start
+		short[] action; // pickup of the task i (i) or its delivery (n+i), -1 for the start
+		int size;
+		
+		Nodes(int capacity) {
+			capacity = Math.max(capacity, 16);
+			pending = new long[capacity];
+			carried = new long[capacity];
+			city = new short[capacity];
+			load = new int[capacity];
+			cost = new double[capacity];
+			parent = new int[capacity];
+			action = new short[capacity];
+		}
+		
+		int add(long pending, long carried, int city, int load, double cost, int parent, int action) {
+			if (size == this.pending.length) {
+				int capacity = 2 * size;
+				this.pending = Arrays.copyOf(this.pending, capacity);
+				this.carried = Arrays.copyOf(this.carried, capacity);
+				this.city = Arrays.copyOf(this.city, capacity);
+				this.load = Arrays.copyOf(this.load, capacity);
+				this.cost = Arrays.copyOf(this.cost, capacity);
+				this.parent = Arrays.copyOf(this.parent, capacity);
+				this.action = Arrays.copyOf(this.action, capacity);
+			}
+			this.pending[size] = pending;
+			this.carried[size] = carried;
+			this.city[size] = (short) city;
+			this.load[size] = load;
+			this.cost[size] = cost;
+			this.parent[size] = parent;
+			this.action[size] = (short) action;
+			return size++;
+		}
+		
+		//Copy all the nodes of other at the end of this store
+		void addAll(Nodes other) {
+			int capacity = pending.length;
+			while (capacity < size + other.size) {
+				capacity *= 2;
+			}
+			if (capacity > pending.length) {
+				pending = Arrays.copyOf(pending, capacity);
+				carried = Arrays.copyOf(carried, capacity);
+				city = Arrays.copyOf(city, capacity);
+				load = Arrays.copyOf(load, capacity);
+				cost = Arrays.copyOf(cost, capacity);
+				parent = Arrays.copyOf(parent, capacity);
+				action = Arrays.copyOf(action, capacity);
+			}
+			System.arraycopy(other.pending, 0, pending, size, other.size);
+			System.arraycopy(other.carried, 0, carried, size, other.size);
+			System.arraycopy(other.city, 0, city, size, other.size);
+			System.arraycopy(other.load, 0, load, size, other.size);
+			System.arraycopy(other.cost, 0, cost, size, other.size);
+			System.arraycopy(other.parent, 0, parent, size, other.size);
+			System.arraycopy(other.action, 0, action, size, other.size);
+			size += other.size;
+		}
 	}
 	
-	//Function to sum element by element of two arrays
-		private ArrayList<Double> applyOn2Arrays(ArrayList<Double> a, ArrayList<Double> b){
-			
-			ArrayList<Double> c = new ArrayList<Double>();
-			for (int i = 0; i < a.size(); ++i) {
-			    c.add(a.get(i) + b.get(i));
+	private static long hash(long pending, long carried, int city) {
+		long h = pending * 0x9E3779B97F4A7C15L + carried * 0xC2B2AE3D27D4EB4FL + city;
+		return h ^ (h >>> 29);
+	}
+	
+	//Open addressing hash table from a state (city, pending, carried) to the index of a node
+	class StateTable {
+		long[] pending;
+		long[] carried;
+		short[] city;
+		int[] node; // -1 for an empty slot
+		int size;
+		
+		StateTable(int capacity) {
+			int slots = 16;
+			while (slots < 2 * capacity) {
+				slots *= 2;
 			}
-			
-			return c;
-		}
-	
-	//Allow to return a pair of objects (the matrix of cost and the references list) in the method BFSMatrix
-	class Pair { 
-		ArrayList<Double> matrix;  
-		ArrayList<String> refs;  
-	    Pair(ArrayList<Double> a, ArrayList<String> b) 
-	    { 
-	        matrix = a;
-	        refs = b;
-	    } 
-	} 
-
+			pending = new long[slots];
+			carried = new long[slots];
+			city = new short[slots];
+			node = new int[slots];
+			Arrays.fill(node, -1);
+		}
+		
+		private int slot(long pending, long carried, int city) {
+			int mask = node.length - 1;
+			int i = (int) hash(pending, carried, city) & mask;
+			while (node[i] != -1 && (this.pending[i] != pending || this.carried[i] != carried || this.city[i] != city)) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+		
+		//The node of the state, -1 if the state is unknown
+		int get(long pending, long carried, int city) {
+			return node[slot(pending, carried, city)];
+		}
+		
+		void put(long pending, long carried, int city, int n) {
+			int i = slot(pending, carried, city);
+			if (node[i] == -1) {
+				if (2 * (size + 1) > node.length) {
+					rehash();
+					i = slot(pending, carried, city);
+				}
+				size++;
+				this.pending[i] = pending;
+				this.carried[i] = carried;
+				this.city[i] = (short) city;
+			}
+			node[i] = n;
+		}
+		
+		private void rehash() {
+			long[] old_pending = pending;
+			long[] old_carried = carried;
+			short[] old_city = city;
+			int[] old_node = node;
+			pending = new long[2 * old_node.length];
+			carried = new long[2 * old_node.length];
+			city = new short[2 * old_node.length];
+			node = new int[2 * old_node.length];
+			Arrays.fill(node, -1);
+			for (int j = 0; j < old_node.length; j++) {
+				if (old_node[j] != -1) {
+					int i = slot(old_pending[j], old_carried[j], old_city[j]);
+					pending[i] = old_pending[j];
+					carried[i] = old_carried[j];
+					city[i] = old_city[j];
+					node[i] = old_node[j];
+				}
+			}
+		}
+	}
 	
-	//Calculate a matrix of all possibilities with the cost associated to it
-	public Pair BFSMatrix(Vehicle vehicle, TaskSet tasks) {
-		ArrayList<Double> matrix = new ArrayList<Double>(); //The matrix with cost values
-		ArrayList<Double> intermediate_matrix = new ArrayList<Double>();
-		ArrayList<String> references = new ArrayList<String>(); //The references corresponding to all the actions made by the agent
-		City current = vehicle.getCurrentCity();
-		double load = vehicle.capacity(); 
-		ArrayList<Integer> current_capacity = new ArrayList<Integer>();
-		ArrayList<TaskSet> current_tasks = new ArrayList<TaskSet>();
-		ArrayList<TaskSet> actions = new ArrayList<TaskSet>();
-		ArrayList<City> states = new ArrayList<City>();
-		
-		int sz = 2*tasks.size(); //The depth of the Breadth first search
-		int compt = 1; //the index of the tasks iterated
-			
-		//First level of the Breadth First Search. The branches correspond to all possible tasks
-		for(Task task : tasks) {
-			
-			double cost = current.distanceTo(task.pickupCity);
-			current_capacity.add(task.weight);
-			intermediate_matrix.add(cost);
-			references.add("P" + Integer.toString(compt));
-			states.add(task.pickupCity);
-			TaskSet other_tasks = tasks.copyOf(tasks);
-			other_tasks.remove(task);
-			actions.add(other_tasks);
-			TaskSet loading = tasks.copyOf(tasks);
-			loading.clear();
-			loading.add(task);
-			current_tasks.add(loading);
-
-			compt ++;
-		}
-		
-		//One loop in the while loop represents one level of depthness
-		while (sz>1) {
-			sz --;
-			int node = 0;
-			ArrayList<Double> new_matrix = new ArrayList<Double>();
-			ArrayList<TaskSet> new_actions = new ArrayList<TaskSet>();
-			ArrayList<TaskSet> new_current_tasks = new ArrayList<TaskSet>();
-			ArrayList<City> new_states = new ArrayList<City>();
-			ArrayList<Integer> weights = new ArrayList<Integer>();
-			ArrayList<String> new_references = new ArrayList<String>();
-			//itr represents all the tasks that are not picked up in one particular node
-			for (TaskSet itr : actions) {
-				int has_done = 0;
-				int comptD = 1;
-				ArrayList<Task> has_done_actions = new ArrayList<Task>();
-				//current_tasks represents all the tasks that are picked up but not delivered in a particular node
-				for(Task task : current_tasks.get(node)) {
-					City new_current = states.get(node);
-					TaskSet point_actions = itr.copyOf(itr);
-					List<City> path = new_current.pathTo(task.deliveryCity);
-					TaskSet loading = current_tasks.get(node).copyOf(current_tasks.get(node));
-					//Test if one of the task that were not picked up are on the path of the delivery city
-					int comptP = 1;
-					for(Task task_path : itr) {
-						if (path.contains(task_path.pickupCity) & has_done < current_tasks.get(node).size()) {
-							//Test if picking up the task will not exceed the load of the agent
-							int total_weight = current_capacity.get(node) + task_path.weight;
-							if (total_weight < load) {
-								point_actions.remove(task_path);
-								double cost = intermediate_matrix.get(node)+ new_current.distanceTo(task_path.pickupCity);
-								new_matrix.add(cost);
-								new_actions.add(point_actions);
-								new_states.add(task_path.pickupCity);
-								loading.add(task_path);
-								has_done_actions.add(task_path);
-								new_current_tasks.add(loading);
-								weights.add(current_capacity.get(node)+task_path.weight);
-								new_references.add(references.get(node) + "P" + Integer.toString(comptP));
-								has_done ++;
-							}
+	//Binary heap of node indices ordered by their f value, the open list of A*
+	class OpenList {
+		double[] f = new double[16];
+		int[] node = new int[16];
+		int size;
+		
+		boolean isEmpty() {
+			return size == 0;
+		}
+		
+		void push(double key, int n) {
+			if (size == node.length) {
+				f = Arrays.copyOf(f, 2 * size);
+				node = Arrays.copyOf(node, 2 * size);
+			}
+			int i = size++;
+			while (i > 0 && f[(i - 1) / 2] > key) {
+				f[i] = f[(i - 1) / 2];
+				node[i] = node[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			f[i] = key;
+			node[i] = n;
+		}
+		
+		//Remove and return the node with the smallest f
+		int pop() {
+			int top = node[0];
+			size--;
+			double key = f[size];
+			int n = node[size];
+			int i = 0;
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && f[child + 1] < f[child]) {
+					child++;
+				}
+				if (f[child] >= key) {
+					break;
+				}
+				f[i] = f[child];
+				node[i] = node[child];
+				i = child;
+			}
+			f[i] = key;
+			node[i] = n;
+			return top;
+		}
+	}
+	
+	//The tasks in the iteration order of the TaskSet followed by the carried tasks,
+	//a task is its index in this array
+	private Task[] TaskList(TaskSet tasks) {
+		List<Task> list = new ArrayList<Task>(tasks);
+		if (carriedTasks != null) {
+			for (Task task : carriedTasks) {
+				if (!tasks.contains(task)) {
+					list.add(task);
+				}
+			}
+		}
+		if (list.size() > 62) {
+			throw new IllegalArgumentException("The planner cannot handle more than 62 tasks");
+		}
+		return list.toArray(new Task[list.size()]);
+	}
+	
+	//Add the start node : the carried tasks are on board, the others must be picked up
+	private int Root(Vehicle vehicle, Task[] task_list, Nodes nodes) {
+		long pending = 0;
+		long carried = 0;
+		int load = 0;
+		for (int i = 0; i < task_list.length; i++) {
+			if (carriedTasks != null && carriedTasks.contains(task_list[i])) {
+				carried |= 1L << i;
+				load += task_list[i].weight;
+			}
+			else {
+				pending |= 1L << i;
+			}
+		}
+		return nodes.add(pending, carried, vehicle.getCurrentCity().id, load, 0, -1, -1);
+	}
+	
+	//The child of a node by the action on one task, shared by the searches. Each thread uses its own.
+	class Successor {
+		long pending;
+		long carried;
+		int city;
+		int load;
+		double cost;
+		int action; // pickup of the task i (i) or its delivery (n+i)
+		
+		//Set the child of node by the pickup or the delivery of the task i,
+		//false if the task is delivered or does not fit in the vehicle
+		boolean apply(Nodes nodes, int node, Task[] task_list, int i, int capacity) {
+			Task task = task_list[i];
+			pending = nodes.pending[node];
+			carried = nodes.carried[node];
+			if ((pending & (1L << i)) != 0) {
+				if (nodes.load[node] + task.weight > capacity) {
+					return false;
+				}
+				pending &= ~(1L << i);
+				carried |= 1L << i;
+				city = task.pickupCity.id;
+				load = nodes.load[node] + task.weight;
+				action = i;
+			}
+			else if ((carried & (1L << i)) != 0) {
+				carried &= ~(1L << i);
+				city = task.deliveryCity.id;
+				load = nodes.load[node] - task.weight;
+				action = task_list.length + i;
+			}
+			else {
+				return false;
+			}
+			cost = nodes.cost[node] + distances.distance(nodes.city[node], city);
+			return true;
+		}
+	}
+	
+	//Breadth first search over all the orders of the actions. The search goes level by level, a level
+	//holds all the nodes after the same number of actions. The nodes reaching the same state are merged
+	//and keep the cheapest path, so the search is done on the graph of the states. All the levels are
+	//kept in nodes, the plan is rebuilt from the parents.
+	//The best plan is tracked while the goals are generated (they are not stored) and the nodes that
+	//cannot beat it are pruned (branch and bound). Returns the index of the goal node, -1 if there is none.
+	public int BFSMatrix(Vehicle vehicle, Task[] task_list, Nodes nodes) {
+		int n = task_list.length;
+		int capacity = vehicle.capacity();
+		Successor successor = new Successor(); // the child being generated
+		int start = Root(vehicle, task_list, nodes);
+		int end = nodes.size;
+		if (n == 0) {
+			return start;
+		}
+		int goal = -1;
+		int expanded = 0;
+		//the greedy plan or the last plan give the first bound
+		double best_cost = Math.min(GreedyCost(vehicle, task_list, nodes, start), bound) + 1e-6;
+		
+		//One loop represents one level of depthness, the level is the nodes from start to end
+		for (int depth = 0; depth < 2 * n; depth++) {
+			StateTable visited = new StateTable(end - start); // the node of each state of the next level
+			for (int node = start; node < end; node++) {
+				long pending = nodes.pending[node];
+				long carried = nodes.carried[node];
+				int city = nodes.city[node];
+				if (nodes.cost[node] + heuristic.estimate(city, pending, carried, task_list) > best_cost) {
+					continue;
+				}
+				expanded++;
+				for (int i = 0; i < n; i++) {
+					if (!successor.apply(nodes, node, task_list, i, capacity)) {
+						continue;
+					}
+					if (successor.pending == 0 && successor.carried == 0) {
+						if (successor.cost < best_cost) {
+							best_cost = successor.cost;
+							goal = nodes.add(successor.pending, successor.carried, successor.city, successor.load, successor.cost, node, successor.action);
 						}
-						comptP++;
+						continue;
+					}
+					if (successor.cost > best_cost) {
+						continue;
 					}
-					
-					if (has_done < current_tasks.get(node).size()) {
-						new_actions.add(point_actions);
-						double cost = intermediate_matrix.get(node)+ new_current.distanceTo(task.deliveryCity);
-						new_matrix.add(cost);
-						new_states.add(task.deliveryCity);
-						loading.remove(task);
-						new_current_tasks.add(loading);
-						weights.add(current_capacity.get(node)-task.weight);
-						new_references.add(references.get(node) + "D" + Integer.toString(comptD));
-						comptD++;
-						has_done ++;
+					int known = visited.get(successor.pending, successor.carried, successor.city);
+					if (known == -1) {
+						visited.put(successor.pending, successor.carried, successor.city, nodes.add(successor.pending, successor.carried, successor.city, successor.load, successor.cost, node, successor.action));
+					}
+					else if (successor.cost < nodes.cost[known]) {
+						nodes.cost[known] = successor.cost;
+						nodes.parent[known] = node;
+						nodes.action[known] = (short) successor.action;
 					}
 				}
-				compt = 1;
-				for(Task task : itr) {
-					City new_current = states.get(node);
-					int total_weight = current_capacity.get(node) + task.weight;
-					if (total_weight < load & has_done_actions.contains(task) == false) {
-						double cost = intermediate_matrix.get(node) + new_current.distanceTo(task.pickupCity);
-						new_matrix.add(cost);
-						new_states.add(task.pickupCity);
-						TaskSet act = itr.copyOf(itr);
-						act.remove(task);
-						new_actions.add(act);
-						TaskSet loading_pick = current_tasks.get(node).copyOf(current_tasks.get(node));
-						loading_pick.add(task);
-						new_current_tasks.add(loading_pick);
-						weights.add(total_weight);
-						new_references.add(references.get(node) + "P" + Integer.toString(compt));
-						compt++;
+			}
+			start = end;
+			end = nodes.size;
+		}
+		System.out.println("BFS expanded " + expanded + " nodes with the " + heuristicName + " heuristic");
+		return goal;
+	}
+	
+	//BFSMatrix with each level expanded by threads threads of a fork-join pool. A level is split in parts,
+	//each part writes its children in its own buffers (one per shard of the states). At the end of the
+	//level each shard is merged by one thread, so the states are deduplicated without locks, and the
+	//shards are appended to nodes. The bound is shared between the levels only.
+	public int ParallelBFS(Vehicle vehicle, Task[] task_list, Nodes nodes) {
+		int n = task_list.length;
+		int start = Root(vehicle, task_list, nodes);
+		int end = nodes.size;
+		if (n == 0) {
+			return start;
+		}
+		int goal = -1;
+		int expanded = 0;
+		double best_cost = Math.min(GreedyCost(vehicle, task_list, nodes, start), bound) + 1e-6;
+		
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			for (int depth = 0; depth < 2 * n; depth++) {
+				int nb_parts = Math.max(1, Math.min(4 * threads, (end - start) / MIN_PART));
+				List<Expansion> parts = new ArrayList<Expansion>();
+				for (int k = 0; k < nb_parts; k++) {
+					int from = start + (int) ((long) (end - start) * k / nb_parts);
+					int to = start + (int) ((long) (end - start) * (k + 1) / nb_parts);
+					parts.add(new Expansion(vehicle, task_list, nodes, from, to, best_cost));
+				}
+				// get() rethrows the failure of a part before its children are merged
+				for (Future<Expansion> part : pool.invokeAll(parts)) {
+					part.get();
+				}
+				
+				// barrier : the best goal of the level and the children merged shard by shard
+				Expansion best_part = null;
+				List<Merge> merges = new ArrayList<Merge>();
+				for (Expansion part : parts) {
+					expanded += part.expanded;
+					if (part.goal_cost < best_cost) {
+						best_cost = part.goal_cost;
+						best_part = part;
+					}
+				}
+				for (int shard = 0; shard < threads; shard++) {
+					merges.add(new Merge(parts, shard, best_cost));
+				}
+				int level_start = nodes.size;
+				for (Future<Nodes> merged : pool.invokeAll(merges)) {
+					nodes.addAll(merged.get());
+				}
+				start = level_start;
+				end = nodes.size;
+				if (best_part != null) {
+					goal = nodes.add(0, 0, best_part.goal_city, 0, best_part.goal_cost, best_part.goal_parent, best_part.goal_action);
+				}
+			}
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("The parallel BFS was interrupted", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new IllegalStateException("The parallel BFS failed", exc.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+		System.out.println("Parallel BFS expanded " + expanded + " nodes with the " + heuristicName + " heuristic on " + threads + " threads");
+		return goal;
+	}
+	
+	//The nodes from to to of a level expanded by one thread of ParallelBFS. Only the cheapest goal is kept.
+	class Expansion implements Callable<Expansion> {
+		Vehicle vehicle;
+		Task[] task_list;
+		Nodes nodes; // read only during the expansion
+		int from;
+		int to;
+		double bound;
+		Nodes[] children; // the children of each shard
+		int expanded;
+		double goal_cost = Double.POSITIVE_INFINITY;
+		int goal_city;
+		int goal_parent;
+		int goal_action;
+		
+		Expansion(Vehicle vehicle, Task[] task_list, Nodes nodes, int from, int to, double bound) {
+			this.vehicle = vehicle;
+			this.task_list = task_list;
+			this.nodes = nodes;
+			this.from = from;
+			this.to = to;
+			this.bound = bound;
+			children = new Nodes[threads];
+			for (int shard = 0; shard < threads; shard++) {
+				children[shard] = new Nodes(2 * (to - from) / threads);
+			}
+		}
+		
+		public Expansion call() {
+			int n = task_list.length;
+			int capacity = vehicle.capacity();
+			Successor successor = new Successor(); // the child being generated
+			for (int node = from; node < to; node++) {
+				long pending = nodes.pending[node];
+				long carried = nodes.carried[node];
+				int city = nodes.city[node];
+				if (nodes.cost[node] + heuristic.estimate(city, pending, carried, task_list) > bound) {
+					continue;
+				}
+				expanded++;
+				for (int i = 0; i < n; i++) {
+					if (!successor.apply(nodes, node, task_list, i, capacity)) {
+						continue;
+					}
+					if (successor.pending == 0 && successor.carried == 0) {
+						if (successor.cost < goal_cost) {
+							goal_cost = successor.cost;
+							goal_city = successor.city;
+							goal_parent = node;
+							goal_action = successor.action;
+						}
+						continue;
+					}
+					if (successor.cost > bound) {
+						continue;
 					}
+					int shard = (int) ((hash(successor.pending, successor.carried, successor.city) >>> 33) % threads);
+					children[shard].add(successor.pending, successor.carried, successor.city, successor.load, successor.cost, node, successor.action);
 				}
-				node ++;
 			}
-			intermediate_matrix = new ArrayList<Double>(new_matrix);
-			current_tasks = new ArrayList<TaskSet>(new_current_tasks);
-			actions = new ArrayList<TaskSet>(new_actions);
-			states = new ArrayList<City>(new_states);
-			current_capacity = new ArrayList<Integer>(weights);
-			references = new ArrayList<String>(new_references);
+			return this;
 		}
+	}
+	
+	//The children of one shard from all the parts of a level, with the cheapest node of each state
+	class Merge implements Callable<Nodes> {
+		List<Expansion> parts;
+		int shard;
+		double bound;
 		
-		matrix = new ArrayList<Double>(intermediate_matrix);
+		Merge(List<Expansion> parts, int shard, double bound) {
+			this.parts = parts;
+			this.shard = shard;
+			this.bound = bound;
+		}
 		
-		return new Pair(matrix,references);
+		public Nodes call() {
+			int size = 0;
+			for (Expansion part : parts) {
+				size += part.children[shard].size;
+			}
+			Nodes merged = new Nodes(size);
+			StateTable visited = new StateTable(size);
+			for (Expansion part : parts) {
+				Nodes children = part.children[shard];
+				for (int k = 0; k < children.size; k++) {
+					// the bound may have decreased with the goals of the other parts
+					if (children.cost[k] > bound) {
+						continue;
+					}
+					int known = visited.get(children.pending[k], children.carried[k], children.city[k]);
+					if (known == -1) {
+						visited.put(children.pending[k], children.carried[k], children.city[k], merged.add(children.pending[k],
+								children.carried[k], children.city[k], children.load[k], children.cost[k], children.parent[k], children.action[k]));
+					}
+					else if (children.cost[k] < merged.cost[known]) {
+						merged.cost[known] = children.cost[k];
+						merged.parent[known] = children.parent[k];
+						merged.action[known] = children.action[k];
+					}
+				}
+			}
+			return merged;
+		}
+	}
+	
+	//Distance of the plan always going to the closest possible pickup or delivery,
+	//infinite if a task is too heavy
+	private double GreedyCost(Vehicle vehicle, Task[] task_list, Nodes nodes, int start) {
+		int n = task_list.length;
+		int capacity = vehicle.capacity();
+		long pending = nodes.pending[start];
+		long carried = nodes.carried[start];
+		int city = nodes.city[start];
+		int load = nodes.load[start];
+		double cost = 0;
+		while (pending != 0 || carried != 0) {
+			int best = -1;
+			double best_distance = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < n; i++) {
+				Task task = task_list[i];
+				double distance;
+				if ((pending & (1L << i)) != 0 && load + task.weight <= capacity) {
+					distance = distances.distance(city, task.pickupCity.id);
+				}
+				else if ((carried & (1L << i)) != 0) {
+					distance = distances.distance(city, task.deliveryCity.id);
+				}
+				else {
+					continue;
+				}
+				if (distance < best_distance) {
+					best = i;
+					best_distance = distance;
+				}
+			}
+			if (best == -1) {
+				return Double.POSITIVE_INFINITY;
+			}
+			Task task = task_list[best];
+			cost += best_distance;
+			if ((pending & (1L << best)) != 0) {
+				pending &= ~(1L << best);
+				carried |= 1L << best;
+				city = task.pickupCity.id;
+				load += task.weight;
+			}
+			else {
+				carried &= ~(1L << best);
+				city = task.deliveryCity.id;
+				load -= task.weight;
+			}
+		}
+		return cost;
 	}
 	
 	private Plan BFSPlan(Vehicle vehicle, TaskSet tasks) {
-		City current = vehicle.getCurrentCity();
-		Plan plan = new Plan(current);
+		Task[] task_list = TaskList(tasks);
+		Nodes nodes = new Nodes(1024);
 		long startTime = System.currentTimeMillis();
-		Pair tree_matrix = BFSMatrix(vehicle, tasks);
+		int goal = (threads > 1) ? ParallelBFS(vehicle, task_list, nodes) : BFSMatrix(vehicle, task_list, nodes);
 		long endTime = System.currentTimeMillis();
 		long duration = (endTime - startTime)/1000;
 		System.out.println("The plan was computed in " + duration + " seconds");
-		int sz = tasks.size();
-		int[] pick_nb = new int[sz];
-		int[] del_nb = new int[sz];
-		for (int i = 0; i < sz; ++i) {
-	        pick_nb[i] = i;
-	        del_nb[i] = i;
-	    }
-		int index = amin(tree_matrix.matrix);
-		String best_ref = tree_matrix.refs.get(index);
-		System.out.println("The total distance is " + tree_matrix.matrix.get(index) + " km");
-		String[] best_arr = best_ref.split("(?<=\\G.)");
-		for (int i = 0; i<best_arr.length; i++) {
-			if (best_arr[i].equals("P") == true) {
-				int compt = 0;
-				for (Task task : tasks) {
-					if (compt == pick_nb[Integer.parseInt(best_arr[i+1])-1]) {
-						// move: current city => pickup location
-						for (City city : current.pathTo(task.pickupCity))
-							plan.appendMove(city);
-						
-						plan.appendPickup(task);
-						current = task.pickupCity;
-					}
-					compt++;
-				}
-				pick_nb = removefromarr(pick_nb,Integer.parseInt(best_arr[i+1])-1);
-			}
-			if (best_arr[i].equals("D") == true) {
-				int compt = 0;
-				for (Task task : tasks) {
-					if (compt == del_nb[Integer.parseInt(best_arr[i+1])-1]) {
-						// move: current city => pickup location
-						for (City city : current.pathTo(task.deliveryCity))
-							plan.appendMove(city);
-						
-						plan.appendDelivery(task);
-						current = task.deliveryCity;
-					}
-					compt++;
+		if (goal == -1) {
+			throw new IllegalArgumentException("A task is heavier than the capacity of the vehicle");
+		}
+		System.out.println("The total distance is " + nodes.cost[goal] + " km");
+		return NodeToPlan(vehicle, task_list, nodes, goal);
+	}
+	
+	//A lower bound of the distance left from a state. It must never overestimate it so that
+	//A* finds an optimal plan and BFS does not prune it.
+	interface Heuristic {
+		double estimate(int city, long pending, long carried, Task[] task_list);
+	}
+	
+	private Heuristic makeHeuristic(HeuristicName name) {
+		switch (name) {
+		case NONE:
+			return (city, pending, carried, task_list) -> 0;
+		case DELIVERY:
+			return new DeliveryHeuristic();
+		case TRIP:
+			return new TripHeuristic();
+		case MST:
+			return new MSTHeuristic();
+		default:
+			throw new AssertionError("Should not happen.");
+		}
+	}
+	
+	//The carried tasks must be delivered : the farthest delivery is a consistent lower bound
+	class DeliveryHeuristic implements Heuristic {
+		public double estimate(int city, long pending, long carried, Task[] task_list) {
+			double h = 0;
+			for (int i = 0; i < task_list.length; i++) {
+				if ((carried & (1L << i)) != 0) {
+					h = Math.max(h, distances.distance(city, task_list[i].deliveryCity.id));
 				}
-				del_nb = removefromarr(del_nb,Integer.parseInt(best_arr[i+1])-1);
 			}
-			i++;
+			return h;
 		}
-		
-		return plan;
 	}
 	
-public ArrayList<Double> AstarMatrix(Vehicle vehicle, TaskSet tasks, City current) {
+	//Every pending task must still be picked up and delivered and every carried task delivered,
+	//so the longest of these trips is a consistent lower bound
+	class TripHeuristic implements Heuristic {
+		public double estimate(int city, long pending, long carried, Task[] task_list) {
+			double h = 0;
+			for (int i = 0; i < task_list.length; i++) {
+				Task task = task_list[i];
+				if ((pending & (1L << i)) != 0) {
+					h = Math.max(h, distances.distance(city, task.pickupCity.id) + distances.distance(task.pickupCity, task.deliveryCity));
+				}
+				else if ((carried & (1L << i)) != 0) {
+					h = Math.max(h, distances.distance(city, task.deliveryCity.id));
+				}
+			}
+			return h;
+		}
+	}
+	
+	//The vehicle still has to visit the current city, the cities of the pending tasks and the delivery
+	//cities of the carried tasks. Its route spans them, so it is at least as long as their minimum
+	//spanning tree (Prim). This bound is admissible but not always consistent.
+	class MSTHeuristic implements Heuristic {
+		// buffers of each thread, the states have at most Long.SIZE tasks
+		private final ThreadLocal<int[]> cities_buffer = ThreadLocal.withInitial(() -> new int[2 * Long.SIZE + 1]);
+		private final ThreadLocal<double[]> link_buffer = ThreadLocal.withInitial(() -> new double[2 * Long.SIZE + 1]);
 		
-		//cost of best path from node to node 
-		//heuristic estimate function Euclidian or Manhattan distance 
-		//g:distance from start node
-		//h:distance from end node  
+		public double estimate(int city, long pending, long carried, Task[] task_list) {
+			int[] cities = cities_buffer.get();
+			int k = 0;
+			cities[k++] = city;
+			for (int i = 0; i < task_list.length; i++) {
+				if ((pending & (1L << i)) != 0) {
+					cities[k++] = task_list[i].pickupCity.id;
+					cities[k++] = task_list[i].deliveryCity.id;
+				}
+				else if ((carried & (1L << i)) != 0) {
+					cities[k++] = task_list[i].deliveryCity.id;
+				}
+			}
+			// closest distance of each city to the tree, the cities in the tree are at the end of the array
+			double[] link = link_buffer.get();
+			for (int j = 1; j < k; j++) {
+				link[j] = distances.distance(city, cities[j]);
+			}
+			double h = 0;
+			for (int size = k - 1; size > 0; size--) {
+				int closest = 1;
+				for (int j = 2; j <= size; j++) {
+					if (link[j] < link[closest]) {
+						closest = j;
+					}
+				}
+				h += link[closest];
+				int added = cities[closest];
+				cities[closest] = cities[size];
+				link[closest] = link[size];
+				for (int j = 1; j < size; j++) {
+					link[j] = Math.min(link[j], distances.distance(added, cities[j]));
+				}
+			}
+			return h;
+		}
+	}
+	
+	//A* over the states of the vehicle. The actions are the pickups and deliveries,
+	//the vehicle goes from one to the next on the shortest path. Returns the index of the goal node.
+	//With a weight w > 1 the heuristic is inflated (f = g + w*h) : fewer nodes are expanded and the plan
+	//is at most w times longer than the optimal one.
+	public int AstarSearch(Vehicle vehicle, Task[] task_list, Nodes nodes, double weight) {
+		int n = task_list.length;
+		int capacity = vehicle.capacity();
+		Successor successor = new Successor(); // the child being generated
+		OpenList open = new OpenList();
+		StateTable best = new StateTable(1024); // the cheapest node found for each state
+		// a node longer than the last plan cannot lead to the optimal plan
+		double bound = this.bound + 1e-6;
 		
-		Plan plan = new Plan(current);
-		double num_cities = 0;
-		double heuristic = Double.POSITIVE_INFINITY;
+		int root = Root(vehicle, task_list, nodes);
+		open.push(weight * heuristic.estimate(nodes.city[root], nodes.pending[root], nodes.carried[root], task_list), root);
+		best.put(nodes.pending[root], nodes.carried[root], nodes.city[root], root);
+		int expanded = 0;
 		
-		ArrayList<Double> Gn = new ArrayList<Double>();
-		ArrayList<Double> Hn = new ArrayList<Double>();
-		ArrayList<Double> Fn = new ArrayList<Double>();
+		while (!open.isEmpty()) {
+			int node = open.pop();
+			long pending = nodes.pending[node];
+			long carried = nodes.carried[node];
+			int city = nodes.city[node];
+			// a cheaper node was found for this state after this one was pushed
+			if (best.get(pending, carried, city) != node) {
+				continue;
+			}
+			if (pending == 0 && carried == 0) {
+				System.out.println("A* expanded " + expanded + " nodes with the " + heuristicName + " heuristic");
+				return node;
+			}
+			expanded++;
+			for (int i = 0; i < n; i++) {
+				if (!successor.apply(nodes, node, task_list, i, capacity)) {
+					continue;
+				}
+				int known = best.get(successor.pending, successor.carried, successor.city);
+				if (known != -1 && nodes.cost[known] <= successor.cost) {
+					continue;
+				}
+				double h = heuristic.estimate(successor.city, successor.pending, successor.carried, task_list);
+				if (successor.cost + h > bound) {
+					continue;
+				}
+				int child = nodes.add(successor.pending, successor.carried, successor.city, successor.load, successor.cost, node, successor.action);
+				best.put(successor.pending, successor.carried, successor.city, child);
+				open.push(successor.cost + weight * h, child);
+			}
+		}
+		return -1;
+	}
+	
+	//Anytime repairing A* (ARA*) : weighted A* searches with a weight decreasing down to 1. Each search
+	//keeps the nodes of the previous ones and only expands again the states that became cheaper since
+	//they were expanded (the inconsistent ones), so the later searches are short. Every search gives a
+	//better plan with its suboptimality bound. Once a plan is known the search stops at the deadline
+	//and the last plan is returned. The bounds hold for a consistent heuristic.
+	public int ARAstarSearch(Vehicle vehicle, Task[] task_list, Nodes nodes, long deadline) {
+		int n = task_list.length;
+		int capacity = vehicle.capacity();
+		Successor successor = new Successor(); // the child being generated
+		StateTable best = new StateTable(1024); // the cheapest node found for each state
+		// search in which the node was expanded, or minus the search in which its state was expanded
+		// before the node was found (the node is inconsistent), 0 otherwise
+		int[] closed = new int[nodes.pending.length];
 		
-		//num_cities = topology.size();
+		int root = Root(vehicle, task_list, nodes);
+		best.put(nodes.pending[root], nodes.carried[root], nodes.city[root], root);
+		if (n == 0) {
+			return root;
+		}
+		OpenList open = new OpenList();
+		open.push(weight * heuristic.estimate(nodes.city[root], nodes.pending[root], nodes.carried[root], task_list), root);
+		int goal = -1;
+		double goal_cost = Double.POSITIVE_INFINITY;
+		double w = weight;
+		int expanded = 0;
 		
-		for (City city: topology.cities()){
-			
-			//compute the heuristic function
-			//add  function to define minimization between the nearest task and
-			//actual delivery city 
-			
-			for(Task task : tasks) {
-				//Take the nearest task distance 
-				if(city.distanceTo(task.pickupCity)+ task.pickupCity.distanceTo(task.deliveryCity)< heuristic) {
-					
-					heuristic = city.distanceTo(task.pickupCity) +  task.pickupCity.distanceTo(task.deliveryCity);
+		for (int search = 1; ; search++) {
+			// the search stops when no open node can lead to a cheaper goal with this weight
+			while (!open.isEmpty() && open.f[0] < goal_cost) {
+				int node = open.pop();
+				long pending = nodes.pending[node];
+				long carried = nodes.carried[node];
+				int city = nodes.city[node];
+				if (best.get(pending, carried, city) != node) {
+					continue;
+				}
+				if (goal != -1 && (expanded & 1023) == 0 && System.currentTimeMillis() > deadline) {
+					System.out.println("ARA* stopped at the deadline after " + expanded + " expanded nodes");
+					return goal;
+				}
+				closed[node] = search;
+				expanded++;
+				for (int i = 0; i < n; i++) {
+					if (!successor.apply(nodes, node, task_list, i, capacity)) {
+						continue;
+					}
+					int known = best.get(successor.pending, successor.carried, successor.city);
+					if (known != -1 && nodes.cost[known] <= successor.cost) {
+						continue;
+					}
+					int child = nodes.add(successor.pending, successor.carried, successor.city, successor.load, successor.cost, node, successor.action);
+					best.put(successor.pending, successor.carried, successor.city, child);
+					if (closed.length < nodes.size) {
+						closed = Arrays.copyOf(closed, nodes.pending.length);
+					}
+					if (successor.pending == 0 && successor.carried == 0) {
+						if (successor.cost < goal_cost) {
+							goal = child;
+							goal_cost = successor.cost;
+						}
+					}
+					else if (known != -1 && Math.abs(closed[known]) == search) {
+						// the state was already expanded in this search, it waits for the next one
+						closed[child] = -search;
+					}
+					else {
+						open.push(successor.cost + w * heuristic.estimate(successor.city, successor.pending, successor.carried, task_list), child);
+					}
 				}
 			}
-			if(!(taskInCity(city, tasks)))
-				heuristic = Double.POSITIVE_INFINITY;
-			
-			Hn.add(heuristic);
-			heuristic = Double.POSITIVE_INFINITY;
+			if (goal == -1) {
+				return -1;
+			}
 			
-			//compute g(n)
-			//distance from start city (current) to each city in the map
-			Gn.add(city.distanceTo(current));
-
+			// the open and inconsistent nodes are the open list of the next search, the smallest
+			// g + h among them is a lower bound of the optimal distance
+			double next_w = Math.max(1, w - WEIGHT_STEP);
+			OpenList next = new OpenList();
+			double lower = goal_cost;
+			for (int node = 0; node < nodes.size; node++) {
+				long pending = nodes.pending[node];
+				long carried = nodes.carried[node];
+				int city = nodes.city[node];
+				if (closed[node] > 0 || (pending == 0 && carried == 0) || best.get(pending, carried, city) != node) {
+					continue;
+				}
+				double h = heuristic.estimate(city, pending, carried, task_list);
+				lower = Math.min(lower, nodes.cost[node] + h);
+				next.push(nodes.cost[node] + next_w * h, node);
+			}
+			double bound = Math.min(w, goal_cost / lower);
+			System.out.println("ARA* with the weight " + w + " : " + goal_cost + " km, at most " + bound
+					+ " times the optimal (" + expanded + " expanded nodes)");
+			if (w == 1 || bound <= 1 + 1e-9) {
+				return goal;
+			}
+			open = next;
+			w = next_w;
 		}
-		
-		//Fn = Hn + Gn
-		Fn = applyOn2Arrays(Hn, Gn);
-		
-		
-		return Fn;
 	}
 	
-	//function that returns if there is a task in a given city 
-	private Boolean taskInCity(City city, TaskSet tasks) {
-		Boolean bool = false;
-		for(Task task : tasks) {
-			if(task.pickupCity == city)
-				bool = true;
+	//Build the plan of the actions from the start to the goal node. The plan is kept for the next replanning.
+	private Plan NodeToPlan(Vehicle vehicle, Task[] task_list, Nodes nodes, int goal) {
+		int length = 0;
+		for (int node = goal; nodes.parent[node] != -1; node = nodes.parent[node]) {
+			length++;
+		}
+		int[] actions = new int[length];
+		for (int node = goal; nodes.parent[node] != -1; node = nodes.parent[node]) {
+			actions[--length] = nodes.action[node];
 		}
-		return bool;
+		last_tasks = task_list;
+		last_actions = actions;
+		last_start = vehicle.getCurrentCity().id;
+		last_optimal = (algorithm == Algorithm.ASTAR || algorithm == Algorithm.BFS);
+		return ActionsToPlan(vehicle, task_list, actions, 0);
 	}
 	
-	//function that returns if a given city is a delivery city or not 
-	private Boolean deliveryCity(City city, TaskSet tasks) {
-		Boolean bool = false;
-		for(Task task : tasks) {
-			if(task.deliveryCity == city)
-				bool = true;
+	//Build the plan of the actions from the index first
+	private Plan ActionsToPlan(Vehicle vehicle, Task[] task_list, int[] actions, int first) {
+		int n = task_list.length;
+		City current = vehicle.getCurrentCity();
+		Plan plan = new Plan(current);
+		for (int k = first; k < actions.length; k++) {
+			int action = actions[k];
+			if (action < n) {
+				Task task = task_list[action];
+				for (City city : distances.path(current, task.pickupCity))
+					plan.appendMove(city);
+				plan.appendPickup(task);
+				current = task.pickupCity;
+			}
+			else {
+				Task task = task_list[action - n];
+				for (City city : distances.path(current, task.deliveryCity))
+					plan.appendMove(city);
+				plan.appendDelivery(task);
+				current = task.deliveryCity;
+			}
 		}
-		return bool;
+		return plan;
 	}
 	
-	private Boolean availableTask(Task task, TaskSet act) {
-		Boolean bool = false;
-		for(Task task_ : act) {
-			if(task_ == task)
-				bool = true;
+	//The city of an action of the last plan
+	private int LastCity(int k) {
+		if (k < 0) {
+			return last_start;
 		}
-		return bool;
+		int action = last_actions[k];
+		int n = last_tasks.length;
+		return (action < n) ? last_tasks[action].pickupCity.id : last_tasks[action - n].deliveryCity.id;
 	}
 	
-	
-	private Plan AstarPlan(Vehicle vehicle, TaskSet tasks) {
+	//Adapt the last plan to the tasks left after a cancellation. The actions of the tasks that are done or
+	//gone are removed, what is left is still a valid plan (unless a task is new) and its distance bounds
+	//the new search. If nothing but the actions already done was removed and the vehicle is on the way
+	//to the next action, the rest of an optimal plan is still optimal and it is returned, else null.
+	private Plan Replan(Vehicle vehicle, TaskSet tasks) {
+		bound = Double.POSITIVE_INFINITY;
+		if (last_actions == null) {
+			return null;
+		}
+		Task[] task_list = TaskList(tasks);
+		Nodes nodes = new Nodes(1);
+		int root = Root(vehicle, task_list, nodes);
+		Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+		for (int i = 0; i < task_list.length; i++) {
+			index.put(task_list[i].id, i);
+		}
 		
-		int test = 0;
-		int num_tasks = 0;
-		City current = vehicle.getCurrentCity();
-		Plan plan = new Plan(current);
-		//ArrayList<City> deliveryCities = new ArrayList<City>();
+		long pending = nodes.pending[root];
+		long carried = nodes.carried[root];
+		int city = nodes.city[root];
+		int load = nodes.load[root];
+		double cost = 0;
+		int m = last_tasks.length;
+		int first = -1; // the first action kept
+		int kept = 0;
+		for (int k = 0; k < last_actions.length; k++) {
+			int action = last_actions[k];
+			Integer i = index.get(last_tasks[action % m].id);
+			if (i == null) {
+				continue;
+			}
+			Task task = task_list[i];
+			if (action < m) {
+				if ((pending & (1L << i)) == 0) {
+					continue;
+				}
+				if (load + task.weight > vehicle.capacity()) {
+					return null;
+				}
+				pending &= ~(1L << i);
+				carried |= 1L << i;
+				load += task.weight;
+				cost += distances.distance(city, task.pickupCity.id);
+				city = task.pickupCity.id;
+			}
+			else {
+				if ((carried & (1L << i)) == 0) {
+					continue;
+				}
+				carried &= ~(1L << i);
+				load -= task.weight;
+				cost += distances.distance(city, task.deliveryCity.id);
+				city = task.deliveryCity.id;
+			}
+			if (first == -1) {
+				first = k;
+			}
+			kept++;
+		}
+		if (pending != 0 || carried != 0) {
+			return null;
+		}
+		bound = cost;
 		
-		double distance = 0;
-		TaskSet act = tasks.copyOf(tasks);
-		
-		ArrayList<Double> Fn = AstarMatrix(vehicle, tasks, current);
-		ArrayList<Task> deliveryTasks = new ArrayList<Task>();
-		int index = amin(Fn);
-		City goal_city = topology.cities().get(index);
-		int sz = 2*tasks.size();
-		//int[] array_nb = new int[sz];
-		//while(!(act.isEmpty()))
-		while(sz > 1){
-			for (Task task : tasks) {
-				
-				if ((task.pickupCity == goal_city)&(availableTask(task, act))){
-					distance += current.distanceTo(task.pickupCity);
-					
-					//deliveryCities.add(task.deliveryCity);
-					deliveryTasks.add(task);
-					ArrayList<Task> new_deliveryTasks = new ArrayList<Task>(deliveryTasks);
-					
-					// move: current city => pickup location
-					for (City city : current.pathTo(task.pickupCity)) {
-						plan.appendMove(city);
-						for(Task del_task : deliveryTasks) {
-							if (del_task.deliveryCity == city) {
-								plan.appendDelivery(del_task);
-								System.out.println("Deliver the task : " + del_task);
-								new_deliveryTasks.remove(del_task);
-							}
-						}
-					}
-					
-					plan.appendPickup(task);
-					System.out.println("Pickup the task : " + task);
-					
-					deliveryTasks = new ArrayList<Task>(new_deliveryTasks);
-
-					// set current city
-					current = task.pickupCity;
-					
-					
-					act.remove(task);
-					sz--;
-					num_tasks++;
-					
-				}
-			}
-			if(act.isEmpty() == true) {
-				for(Task del_task : deliveryTasks) {
-					distance += current.distanceTo(del_task.deliveryCity);
-					for (City city : current.pathTo(del_task.deliveryCity)) {
-						plan.appendMove(city);
-					}
-					plan.appendDelivery(del_task);
-					System.out.println("Deliver the task : " + del_task);
-					// set current city
-					current = del_task.deliveryCity;
-					sz--;
-				}
-			}
-			num_tasks = 0;
-			//tasks.remove(task_);
-			goal_city = current;
-			// if there is no task in current city 
-			if(!(taskInCity(goal_city, act))){
-				Fn = AstarMatrix(vehicle, act, current);
-				index = amin(Fn);
-				goal_city = topology.cities().get(index);
-				
+		int current = nodes.city[root];
+		if (last_optimal && first != -1 && kept == last_actions.length - first
+				&& distances.distance(LastCity(first - 1), current) + distances.distance(current, LastCity(first))
+				<= distances.distance(LastCity(first - 1), LastCity(first)) + 1e-9) {
+			System.out.println("The last plan is still optimal, " + kept + " of its actions are kept");
+			System.out.println("The total distance is " + cost + " km");
+			int[] actions = new int[kept];
+			for (int k = 0; k < kept; k++) {
+				int action = last_actions[first + k];
+				actions[k] = (action < m) ? index.get(last_tasks[action].id) : task_list.length + index.get(last_tasks[action - m].id);
 			}
+			last_tasks = task_list;
+			last_actions = actions;
+			last_start = current;
+			return ActionsToPlan(vehicle, task_list, actions, 0);
 		}
-		System.out.println("The total distance is " + distance + " km");
-		return plan;
+		System.out.println("The last plan adapted to the tasks left is " + cost + " km long");
+		return null;
+	}
+	
+	private Plan AstarPlan(Vehicle vehicle, TaskSet tasks, double weight) {
+		long startTime = System.currentTimeMillis();
+		Task[] task_list = TaskList(tasks);
+		Nodes nodes = new Nodes(1024);
+		int goal = AstarSearch(vehicle, task_list, nodes, weight);
+		long endTime = System.currentTimeMillis();
+		System.out.println("The plan was computed in " + (endTime - startTime) + " ms");
+		if (goal == -1) {
+			throw new IllegalArgumentException("A task is heavier than the capacity of the vehicle");
+		}
+		System.out.println("The total distance is " + nodes.cost[goal] + " km");
+		return NodeToPlan(vehicle, task_list, nodes, goal);
+	}
+	
+	private Plan ARAstarPlan(Vehicle vehicle, TaskSet tasks) {
+		long startTime = System.currentTimeMillis();
+		long deadline = startTime + (long) (TIME_FRACTION * timeout_plan);
+		Task[] task_list = TaskList(tasks);
+		Nodes nodes = new Nodes(1024);
+		int goal = ARAstarSearch(vehicle, task_list, nodes, deadline);
+		long endTime = System.currentTimeMillis();
+		System.out.println("The plan was computed in " + (endTime - startTime) + " ms");
+		if (goal == -1) {
+			throw new IllegalArgumentException("A task is heavier than the capacity of the vehicle");
+		}
+		System.out.println("The total distance is " + nodes.cost[goal] + " km");
+		return NodeToPlan(vehicle, task_list, nodes, goal);
 	}
 	
 
 	@Override
 	public void planCancelled(TaskSet carriedTasks) {
 		
-		if (!carriedTasks.isEmpty()) {
-			// This cannot happen for this simple agent, but typically
-			// you will need to consider the carriedTasks when the next
-			// plan is computed.
-		}
+		// the next plan reads the tasks on board from the vehicle, the last plan is adapted by Replan
 	}
 }
@@ -0,0 +1,108 @@
+package template;
+
+//the list of imports
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import logist.topology.Topology;
+import logist.topology.Topology.City;
+
+/**
+ * The shortest distances and paths between all the cities of a topology,
+ * indexed by City.id. They are computed once per topology and shared by all
+ * the agents that use it.
+ */
+public class Distances {
+
+	private static final Map<Topology, Distances> cache = new WeakHashMap<Topology, Distances>();
+
+	private final int size;
+	private final City[] cities; // city of each id
+	private final double[] distance; // distance[from*size + to]
+	private final int[] successor; // id of the next city on the shortest path from -> to
+	private final List<City>[] paths; // paths[from*size + to], built the first time they are asked for
+
+	//Get the distances of a topology, they are computed by the first agent asking for them
+	public static synchronized Distances of(Topology topology) {
+		Distances distances = cache.get(topology);
+		if (distances == null) {
+			distances = new Distances(topology);
+			cache.put(topology, distances);
+		}
+		return distances;
+	}
+
+	//Floyd-Warshall on the roads between neighbour cities
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Distances(Topology topology) {
+		size = topology.size();
+		cities = new City[size];
+		distance = new double[size * size];
+		successor = new int[size * size];
+		paths = (List<City>[]) new List[size * size];
+		for (City city : topology.cities()) {
+			cities[city.id] = city;
+		}
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				distance[i * size + j] = (i == j) ? 0 : Double.POSITIVE_INFINITY;
+				successor[i * size + j] = j;
+			}
+			for (City neighbor : cities[i].neighbors()) {
+				distance[i * size + neighbor.id] = cities[i].distanceTo(neighbor);
+			}
+		}
+		for (int k = 0; k < size; k++) {
+			for (int i = 0; i < size; i++) {
+				double ik = distance[i * size + k];
+				if (ik == Double.POSITIVE_INFINITY) {
+					continue;
+				}
+				for (int j = 0; j < size; j++) {
+					if (ik + distance[k * size + j] < distance[i * size + j]) {
+						distance[i * size + j] = ik + distance[k * size + j];
+						successor[i * size + j] = successor[i * size + k];
+					}
+				}
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double distance(int from, int to) {
+		return distance[from * size + to];
+	}
+
+	public double distance(City from, City to) {
+		return distance[from.id * size + to.id];
+	}
+
+	//The next city on the shortest path from -> to
+	public City next(City from, City to) {
+		return cities[successor[from.id * size + to.id]];
+	}
+
+	//The cities of the shortest path, without from (like City.pathTo). The list is built once and
+	//shared by all the plans, it cannot be modified. Two threads may both build a missing list,
+	//they get equal lists.
+	public List<City> path(City from, City to) {
+		List<City> path = paths[from.id * size + to.id];
+		if (path == null) {
+			List<City> list = new ArrayList<City>();
+			int city = from.id;
+			while (city != to.id) {
+				city = successor[city * size + to.id];
+				list.add(cities[city]);
+			}
+			path = Collections.unmodifiableList(list);
+			paths[from.id * size + to.id] = path;
+		}
+		return path;
+	}
+}
@@ -34,6 +34,7 @@ public class AuctionCentralized implements AuctionBehavior {
 	private Vehicle vehicle;
 	private City currentCity;
 	private double [] valueFunction;
+	private Distances distances;
 
 	@Override
 	public void setup(Topology topology, TaskDistribution distribution,
@@ -47,6 +48,7 @@ public class AuctionCentralized implements AuctionBehavior {
 
 		long seed = -9019554669489983951L * currentCity.hashCode() * agent.id();
 		this.random = new Random(seed);
+		this.distances = Distances.of(topology);
 		this.valueFunction = valueFunction();
 	}
 
@@ -126,13 +128,13 @@ public class AuctionCentralized implements AuctionBehavior {
 
 		for (Task task : tasks) {
 			// move: current city => pickup location
-			for (City city : current.pathTo(task.pickupCity))
+			for (City city : distances.path(current, task.pickupCity))
 				plan.appendMove(city);
 
 			plan.appendPickup(task);
 
 			// move: pickup location => delivery location
-			for (City city : task.path())
+			for (City city : distances.path(task.pickupCity, task.deliveryCity))
 				plan.appendMove(city);
 
 			plan.appendDelivery(task);
@@ -169,9 +171,9 @@ public class AuctionCentralized implements AuctionBehavior {
 			List<City> Neighbors = Cities.get(s).neighbors();
 			for (int j = 0; j<size_cities; j++) {
 				//Calculate the average reward of taking the pickup action in this city
-				matrix[s][0] -= pickup_matrix[j]*vehicle.costPerKm()*Cities.get(s).distanceTo(Cities.get(j)); 
+				matrix[s][0] -= pickup_matrix[j]*vehicle.costPerKm()*distances.distance(Cities.get(s), Cities.get(j)); 
 				for (int k = 0; k<size_cities; k++) {
-					matrix[s][0] += distribution.probability(Cities.get(j), Cities.get(k))*vehicle.costPerKm()*Cities.get(j).distanceTo(Cities.get(k));
+					matrix[s][0] += distribution.probability(Cities.get(j), Cities.get(k))*vehicle.costPerKm()*distances.distance(Cities.get(j), Cities.get(k));
 				}
 			}
 			for (int k = 0; k<Neighbors.size(); k++) {
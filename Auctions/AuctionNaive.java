@@ -31,6 +31,7 @@ public class AuctionNaive implements AuctionBehavior {
 	private Random random;
 	private Vehicle vehicle;
 	private City currentCity;
+	private Distances distances;
 
 	@Override
 	public void setup(Topology topology, TaskDistribution distribution,
@@ -44,6 +45,7 @@ public class AuctionNaive implements AuctionBehavior {
 
 		long seed = -9019554669489983951L * currentCity.hashCode() * agent.id();
 		this.random = new Random(seed);
+		this.distances = Distances.of(topology);
 	}
 
 	@Override
@@ -96,13 +98,13 @@ public class AuctionNaive implements AuctionBehavior {
 			System.out.println("bid : " + askPrice(task));
 			System.out.println("reward : " + task.reward);
 			// move: current city => pickup location
-			for (City city : current.pathTo(task.pickupCity))
+			for (City city : distances.path(current, task.pickupCity))
 				plan.appendMove(city);
 
 			plan.appendPickup(task);
 
 			// move: pickup location => delivery location
-			for (City city : task.path())
+			for (City city : distances.path(task.pickupCity, task.deliveryCity))
 				plan.appendMove(city);
 
 			plan.appendDelivery(task);
@@ -32,6 +32,7 @@ public class AuctionTemplate implements AuctionBehavior {
 	private Random random;
 	private Vehicle vehicle;
 	private City currentCity;
+	private Distances distances;
 
 	@Override
 	public void setup(Topology topology, TaskDistribution distribution,
@@ -45,6 +46,7 @@ public class AuctionTemplate implements AuctionBehavior {
 
 		long seed = -9019554669489983951L * currentCity.hashCode() * agent.id();
 		this.random = new Random(seed);
+		this.distances = Distances.of(topology);
 	}
 
 	@Override
@@ -122,13 +124,13 @@ public class AuctionTemplate implements AuctionBehavior {
 			System.out.println("bid : " + askPrice(task));
 			System.out.println("reward : " + task.reward);
 			// move: current city => pickup location
-			for (City city : current.pathTo(task.pickupCity))
+			for (City city : distances.path(current, task.pickupCity))
 				plan.appendMove(city);
 
 			plan.appendPickup(task);
 
 			// move: pickup location => delivery location
-			for (City city : task.path())
+			for (City city : distances.path(task.pickupCity, task.deliveryCity))
 				plan.appendMove(city);
 
 			plan.appendDelivery(task);
@@ -165,9 +167,9 @@ public class AuctionTemplate implements AuctionBehavior {
 			List<City> Neighbors = Cities.get(s).neighbors();
 			for (int j = 0; j<size_cities; j++) {
 				//Calculate the average reward of taking the pickup action in this city
-				matrix[s][0] -= pickup_matrix[j]*vehicle.costPerKm()*Cities.get(s).distanceTo(Cities.get(j)); 
+				matrix[s][0] -= pickup_matrix[j]*vehicle.costPerKm()*distances.distance(Cities.get(s), Cities.get(j)); 
 				for (int k = 0; k<size_cities; k++) {
-					matrix[s][0] += distribution.probability(Cities.get(j), Cities.get(k))*vehicle.costPerKm()*Cities.get(j).distanceTo(Cities.get(k));
+					matrix[s][0] += distribution.probability(Cities.get(j), Cities.get(k))*vehicle.costPerKm()*distances.distance(Cities.get(j), Cities.get(k));
 				}
 			}
 			for (int k = 0; k<Neighbors.size(); k++) {
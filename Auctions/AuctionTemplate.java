@@ -5,6 +5,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import logist.Measures;
 import logist.behavior.AuctionBehavior;
@@ -32,7 +36,9 @@ public class AuctionTemplate implements AuctionBehavior {
 	private Random random;
 	private Vehicle vehicle;
 	private City currentCity;
+	private Distances distances;
 	double [] valueFunction;
+	private int threads; // threads of the value iteration sweeps
 
 	@Override
 	public void setup(Topology topology, TaskDistribution distribution,
@@ -46,6 +52,8 @@ public class AuctionTemplate implements AuctionBehavior {
 
 		long seed = -9019554669489983951L * currentCity.hashCode() * agent.id();
 		this.random = new Random(seed);
+		this.distances = Distances.of(topology);
+		this.threads = agent.readProperty("threads", Integer.class, 1);
 		this.valueFunction = valueFunction();
 	}
 
@@ -112,13 +120,13 @@ public class AuctionTemplate implements AuctionBehavior {
 
 		for (Task task : tasks) {
 			// move: current city => pickup location
-			for (City city : current.pathTo(task.pickupCity))
+			for (City city : distances.path(current, task.pickupCity))
 				plan.appendMove(city);
 
 			plan.appendPickup(task);
 
 			// move: pickup location => delivery location
-			for (City city : task.path())
+			for (City city : distances.path(task.pickupCity, task.deliveryCity))
 				plan.appendMove(city);
 
 			plan.appendDelivery(task);
@@ -155,9 +163,9 @@ public class AuctionTemplate implements AuctionBehavior {
 			List<City> Neighbors = Cities.get(s).neighbors();
 			for (int j = 0; j<size_cities; j++) {
 				//Calculate the average reward of taking the pickup action in this city
-				matrix[s][0] -= pickup_matrix[j]*vehicle.costPerKm()*Cities.get(s).distanceTo(Cities.get(j)); 
+				matrix[s][0] -= pickup_matrix[j]*vehicle.costPerKm()*distances.distance(Cities.get(s), Cities.get(j)); 
 				for (int k = 0; k<size_cities; k++) {
-					matrix[s][0] += distribution.probability(Cities.get(j), Cities.get(k))*vehicle.costPerKm()*Cities.get(j).distanceTo(Cities.get(k));
+					matrix[s][0] += distribution.probability(Cities.get(j), Cities.get(k))*vehicle.costPerKm()*distances.distance(Cities.get(j), Cities.get(k));
 				}
 			}
 			for (int k = 0; k<Neighbors.size(); k++) {
@@ -204,49 +212,78 @@ public class AuctionTemplate implements AuctionBehavior {
 		
 	}
 	
+	//Value iteration. Each sweep reads old_value and writes new_value, then the two buffers are swapped.
+	//With threads > 1 the states are split in ranges on a fork-join pool, each range returns its largest change.
 	public double [] valueFunction() {
-		
-		List<City> Cities = topology.cities(); //The list of cities are given by ascending ID number
-		int size_cities = Cities.size();
-		
-		int niter =0;
+		int niter = 0;
 		double epsilon = 0.01;
 		int size = topology.size();
 		double [] old_value = new double [size];
-		double [] diff = new double [size];
-		for (int i = 0; i<size; i++) {
-			old_value[i] = 1;
-			diff[i] = 10000;
-		}
+		Arrays.fill(old_value, 1);
 		double [] new_value = new double [size];
 		double [][] rewardMatrix = rewardMatrix();
 		double [][][] transitionMatrix = transitionMatrix();
 		
-		double [][] qArray = new double[size][2];
-		while (Arrays.stream(diff).max().getAsDouble() > epsilon) {
-			for (int s = 0; s<size_cities; s++) {
-				for (int a = 0; a<2; a++) {
-					qArray[s][a] = rewardMatrix[s][a];
-					for (int s_ = 0; s_<size_cities; s_++) {
-						qArray[s][a] += 0.95*transitionMatrix[s][a][s_]*old_value[s_];
-						
+		ForkJoinPool pool = (threads > 1) ? new ForkJoinPool(threads) : null;
+		try {
+			double diff = Double.POSITIVE_INFINITY;
+			while (diff > epsilon) {
+				if (pool == null) {
+					diff = sweep(0, size, rewardMatrix, transitionMatrix, old_value, new_value);
+				}
+				else {
+					List<Callable<Double>> parts = new ArrayList<Callable<Double>>();
+					for (int t = 0; t<threads; t++) {
+						int from = size*t/threads;
+						int to = size*(t+1)/threads;
+						double [] read = old_value;
+						double [] write = new_value;
+						parts.add(() -> sweep(from, to, rewardMatrix, transitionMatrix, read, write));
+					}
+					diff = 0;
+					for (Future<Double> part : pool.invokeAll(parts)) {
+						diff = Math.max(diff, part.get());
 					}
 				}
-				//System.out.println("test   "+Arrays.stream(qArray[s]).max().getAsDouble());
-				new_value[s] = Arrays.stream(qArray[s]).max().getAsDouble();
+				double [] swap = old_value;
+				old_value = new_value;
+				new_value = swap;
+				niter++;
 			}
-			for (int i=0; i<size; i++) {
-				//System.out.println(i+"  old " +old_value[i]+"  new " +new_value[i]);
-				diff[i] = Math.abs(new_value[i] - old_value[i]);
-			}
-			for (int i = 0; i<size; i++) {
-				old_value[i] = new_value[i];
+		}
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("The parallel value iteration was interrupted", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new IllegalStateException("The parallel value iteration failed", exc.getCause());
+		}
+		finally {
+			if (pool != null) {
+				pool.shutdown();
 			}
-
-			niter++;
 		}
 		//System.out.println("V(s) converge after " + niter + " iterations");
-		//System.out.println("V(s) = " + Arrays.toString(new_value));
-		return new_value;
+		//System.out.println("V(s) = " + Arrays.toString(old_value));
+		return old_value;
+	}
+	
+	//Bellman update of the states from to to, returns the largest change
+	private double sweep(int from, int to, double [][] rewardMatrix, double [][][] transitionMatrix, double [] old_value, double [] new_value) {
+		int size = topology.size();
+		double diff = 0;
+		for (int s = from; s<to; s++) {
+			double best = Double.NEGATIVE_INFINITY;
+			for (int a = 0; a<2; a++) {
+				double q = rewardMatrix[s][a];
+				for (int s_ = 0; s_<size; s_++) {
+					q += 0.95*transitionMatrix[s][a][s_]*old_value[s_];
+				}
+				best = Math.max(best, q);
+			}
+			new_value[s] = best;
+			diff = Math.max(diff, Math.abs(new_value[s] - old_value[s]));
+		}
+		return diff;
 	}
 }
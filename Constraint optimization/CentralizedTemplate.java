@@ -5,6 +5,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import logist.LogistSettings;
@@ -34,6 +39,19 @@ public class CentralizedTemplate implements CentralizedBehavior {
 	// Default Values
 	private static final double CONSERVATIVE_RATE = 0.1;
 	private static final int CYCLE_NB = 1000;
+	// Fraction of timeout_plan given to the search in plan (0 to run CYCLE_NB iterations)
+	private static final double TIME_FRACTION = 0.8;
+	// Number of parallel searches in plan, and period (ms) at which they share their best solution
+	private static final int NB_CHAINS = 1;
+	private static final long SHARE_PERIOD = 100;
+	// End of the plan of a vehicle in the NextTasks array
+	private static final int NULL = -1;
+	// Maximum number of next actions changed by a move
+	private static final int MAX_CHANGES = 5;
+	// Number of iterations during which a change of the solution cannot be undone
+	private static final int TABU_TENURE = 10;
+	// Cost changes smaller than this are rounding errors of the incremental deltas
+	private static final double EPSILON = 1e-9;
 
     private Topology topology;
     private TaskDistribution distribution;
@@ -43,9 +61,17 @@ public class CentralizedTemplate implements CentralizedBehavior {
     public long timeout_bid;
     private double conservative_rate = CONSERVATIVE_RATE;
     private int cycle_nb = CYCLE_NB;
+    private double time_fraction = TIME_FRACTION;
+    private int nb_chains = NB_CHAINS;
+    private SplittableRandom random = new SplittableRandom(); // the chains use generators split from it
     ArrayList<Double> costs = new ArrayList<Double>();
-    private ArrayList<Variables> tabu;
-    private Variables best; 
+    private Distances distances; // shortest distances and paths of the topology
+    private Task[] task_list; // task of each task number of the current search
+    private int[] locations; // id of the city of each action of the current search
+    private int[] weights; // weight of each task of the current search
+    private int[] capacities; // capacity of each vehicle of the current search
+    private TaskSet search_tasks; // the tasks and the vehicles the arrays are built for
+    private List<Vehicle> search_vehicles;
     
     @Override
     public void setup(Topology topology, TaskDistribution distribution,
@@ -67,10 +93,15 @@ public class CentralizedTemplate implements CentralizedBehavior {
         
         this.timeout_bid = ls.get(LogistSettings.TimeoutKey.BID);
         
+        this.time_fraction = agent.readProperty("time-fraction", Double.class, TIME_FRACTION);
+        this.nb_chains = agent.readProperty("chains", Integer.class, NB_CHAINS);
+        // a fixed seed makes the searches reproducible (except for the timing of the parallel ones)
+        this.random = new SplittableRandom(agent.readProperty("seed", Long.class, System.nanoTime()));
+        
         this.topology = topology;
         this.distribution = distribution;
         this.agent = agent;
-	this.tabu = new ArrayList<Variables>();
+        this.distances = Distances.of(topology);
     }
     
     public void change_cycle (int cycle) {
@@ -90,10 +121,24 @@ public class CentralizedTemplate implements CentralizedBehavior {
         Plan planVehicle1 = naivePlan(vehicles.get(0), tasks);
 
         List<Plan> plans = new ArrayList<Plan>();
-        Variables init = SelectInitialSolution(vehicles, tasks);
-        Variables choice =  StochasticLocalSearch(vehicles,tasks);
-        //System.out.println("Random initial solution: " + Arrays.toString(init.NextTasks));
-        //System.out.println("The total distance of the random initial solution is: " + CalculateCost(vehicles, tasks, init) + " km");
+        // nothing to search : the vehicles do not move
+        if (tasks.isEmpty()) {
+        	while (plans.size() < vehicles.size()) {
+        		plans.add(Plan.EMPTY);
+        	}
+        	return plans;
+        }
+        long deadline = 0;
+        if (time_fraction > 0) {
+        	deadline = time_start + (long) (time_fraction * timeout_plan);
+        }
+        Variables choice;
+        if (nb_chains > 1 && deadline > 0) {
+        	choice = ParallelSearch(vehicles, tasks, deadline);
+        }
+        else {
+        	choice = StochasticLocalSearch(vehicles, tasks, deadline);
+        }
         //System.out.println("Final choice: " + Arrays.toString(choice.NextTasks));
         System.out.println("The total distance for the final choice is: " + CalculateCost(vehicles, tasks, choice) + " km");
         
@@ -114,37 +159,92 @@ public class CentralizedTemplate implements CentralizedBehavior {
     }
     
     public Variables StochasticLocalSearch(List<Vehicle> vehicles, TaskSet tasks) {
+    	return StochasticLocalSearch(vehicles, tasks, 0);
+    }
+    
+    //Run the search until the deadline (in ms since the epoch), or cycle_nb iterations if the deadline is 0
+    public Variables StochasticLocalSearch(List<Vehicle> vehicles, TaskSet tasks, long deadline) {
+    	SetTasks(vehicles, tasks);
     	Variables vars = SelectInitialSolution(vehicles, tasks);
-	best = vars;
-    	//List to store the costs for each iteration
-    	//ArrayList<Double> costs = new ArrayList<Double>();
-    	int count = 0;
-    	do {
-    		Variables old = new Variables(vars.index, vars.NextTasks, vars.time, vars.vehicles);
-    		ArrayList<Variables> neigh = ChooseNeighbours(old, tasks, vehicles);
-    		vars = LocalChoice(neigh, vehicles, tasks);
-    		double cost = CalculateCost(vehicles, tasks, vars);
-    		if(count+200>=cycle_nb) {
-    			costs.add(cost);
-    		}
-    		//System.out.println("Cycle : " + count);
-    		count ++;
-    	} while(count<cycle_nb);
-    	return vars;
+    	return Search(vehicles, tasks, vars, deadline);
     }
     
     public Variables StochasticLocalSearch2(List<Vehicle> vehicles, TaskSet tasks, Variables previous, Task task) {		
     	//if(previous)		
+    	SetTasks(vehicles, tasks);
     	Variables vars = SelectInitialSolution2(vehicles, previous, task, tasks);		
-    	int count = 0;		
-    	do {		
-    		Variables old = new Variables(vars.index, vars.NextTasks, vars.time, vars.vehicles);		
-    		ArrayList<Variables> neigh = ChooseNeighbours(old, tasks, vehicles);		
-    		vars = LocalChoice(neigh, vehicles, tasks);		
-    		//System.out.println("Cycle : " + count);		
-    		count ++;		
-    	} while(count<cycle_nb);		
-    	return vars;		
+    	return Search(vehicles, tasks, vars, 0);
+    }
+    
+    //Local search from the initial solution vars, returns the best solution found
+    private Variables Search(List<Vehicle> vehicles, TaskSet tasks, Variables vars, long deadline) {
+    	long time_start = System.currentTimeMillis();
+    	vars.cost = CalculateCost(vehicles, tasks, vars);
+    	Chain chain = new Chain(vehicles, tasks, vars, conservative_rate, random.split());
+    	chain.deadline = deadline;
+    	chain.call();
+    	
+    	long duration = Math.max(System.currentTimeMillis() - time_start, 1);
+    	System.out.println("The SLS did " + chain.iterations + " iterations in " + duration + " ms (" + (chain.iterations * 1000 / duration) + " iterations/s)");
+    	return chain.best;
+    }
+    
+    //Run nb_chains searches on a fork-join pool until the deadline. Every SHARE_PERIOD ms the
+    //chains that are behind restart from the best solution found so far.
+    private Variables ParallelSearch(List<Vehicle> vehicles, TaskSet tasks, long deadline) {
+    	long time_start = System.currentTimeMillis();
+    	SetTasks(vehicles, tasks);
+    	List<Chain> chains = new ArrayList<Chain>();
+    	for (int i = 0; i<nb_chains; i++) {
+    		Variables vars = SelectInitialSolution(vehicles, tasks);
+    		vars.cost = CalculateCost(vehicles, tasks, vars);
+    		// the first chain keeps the conservative rate, the others are greedier
+    		double rate = conservative_rate + (1 - conservative_rate) * i / nb_chains;
+    		chains.add(new Chain(vehicles, tasks, vars, rate, random.split()));
+    	}
+    	
+    	Variables best = chains.get(0).best;
+    	ForkJoinPool pool = new ForkJoinPool(nb_chains);
+    	try {
+    		do {
+    			long period_end = Math.min(System.currentTimeMillis() + SHARE_PERIOD, deadline);
+    			for (Chain chain : chains) {
+    				chain.deadline = period_end;
+    			}
+    			for (Future<Variables> result : pool.invokeAll(chains)) {
+    				if (result.get().cost < best.cost) {
+    					best = result.get();
+    				}
+    			}
+    			for (Chain chain : chains) {
+    				if (chain.best.cost > best.cost) {
+    					chain.vars = new Variables(best);
+    					chain.best = best;
+    					//the tabu list described the abandoned solution
+    					Arrays.fill(chain.tabu_until, 0);
+    					Arrays.fill(chain.tabu_next, 0);
+    				}
+    			}
+    		} while (System.currentTimeMillis() < deadline);
+    	}
+    	catch (InterruptedException exc) {
+    		Thread.currentThread().interrupt();
+    		System.out.println("The parallel search was interrupted, the best solution so far is returned.");
+    	}
+    	catch (ExecutionException exc) {
+    		throw new IllegalStateException("The parallel search failed", exc.getCause());
+    	}
+    	finally {
+    		pool.shutdown();
+    	}
+    	
+    	long iterations = 0;
+    	for (Chain chain : chains) {
+    		iterations += chain.iterations;
+    	}
+    	long duration = Math.max(System.currentTimeMillis() - time_start, 1);
+    	System.out.println("The " + nb_chains + " SLS chains did " + iterations + " iterations in " + duration + " ms (" + (iterations * 1000 / duration) + " iterations/s)");
+    	return best;
     }
 
     private Plan naivePlan(Vehicle vehicle, TaskSet tasks) {
@@ -153,14 +253,14 @@ public class CentralizedTemplate implements CentralizedBehavior {
 
         for (Task task : tasks) {
             // move: current city => pickup location
-            for (City city : current.pathTo(task.pickupCity)) {
+            for (City city : distances.path(current, task.pickupCity)) {
                 plan.appendMove(city);
             }
 
             plan.appendPickup(task);
 
             // move: pickup location => delivery location
-            for (City city : task.path()) {
+            for (City city : distances.path(task.pickupCity, task.deliveryCity)) {
                 plan.appendMove(city);
             }
 
@@ -172,277 +272,206 @@ public class CentralizedTemplate implements CentralizedBehavior {
         return plan;
     }
     
-    //Method to change the string value of an array knowing the index idx by the string word
-    private String[] ChangeFromArray(String[] str, int idx, String word) {
-    	String [] new_str = new String[str.length];
-    	for (int i = 0; i<str.length; i++) {
-    		if (i == idx) {
-    			new_str[i] = word;
-    		}
-    		else {
-    			new_str[i] = str[i];
-    		}
+  //Remove an integer value of a matrix knowing the index
+  	private int[] RemoveFromArrInt(int [] arr, int index) {
+  		// Create another array of size one less
+          int[] anotherArray = new int[arr.length - 1];
+
+          // Copy the elements except the index
+          // from original array to the other array
+          for (int i = 0, k = 0; i < arr.length; i++) {
+
+              // if the index is
+              // the removal element index
+              if (i == index) {
+                  continue;
+              }
+
+              // if the index is not
+              // the removal element index
+              anotherArray[k++] = arr[i];
+          }
+
+          // return the resultant array
+          return anotherArray;
+      }
+
+    //Dense arrays of the tasks and vehicles, built once per search. The task number is the index
+    //of the task in the iteration order of the TaskSet. The location of an action is the pickup city
+    //of a pickup, the delivery city of a delivery and the current city of a vehicle.
+    private void SetTasks(List<Vehicle> vehicles, TaskSet tasks) {
+    	int sz_t = tasks.size();
+    	int sz_v = vehicles.size();
+    	search_tasks = tasks;
+    	search_vehicles = vehicles;
+    	task_list = new Task[sz_t];
+    	weights = new int[sz_t];
+    	capacities = new int[sz_v];
+    	locations = Locations(vehicles, tasks);
+    	int compt = 0;
+    	for (Task task : tasks) {
+    		task_list[compt] = task;
+    		weights[compt] = task.weight;
+    		compt ++;
+    	}
+    	for (int k = 0; k<sz_v; k++) {
+    		capacities[k] = vehicles.get(k).capacity();
     	}
-    	return new_str;
     }
-    
-  //Method to change the string value of an array knowing the index idx by the string word
-    private int[] ChangeFromArrayInt(int[] arr, int idx, int number) {
-    	int [] new_arr = new int[arr.length];
-    	for (int i = 0; i<arr.length; i++) {
-    		if (i == idx) {
-    			new_arr[i] = number;
-    		}
-    		else {
-    			new_arr[i] = arr[i];
-    		}
+
+    //Id of the city of each action
+    private int[] Locations(List<Vehicle> vehicles, TaskSet tasks) {
+    	int sz_t = tasks.size();
+    	int[] locations = new int[2*sz_t + vehicles.size()];
+    	int compt = 0;
+    	for (Task task : tasks) {
+    		locations[compt] = task.pickupCity.id;
+    		locations[sz_t + compt] = task.deliveryCity.id;
+    		compt ++;
     	}
-    	return new_arr;
+    	for (int k = 0; k<vehicles.size(); k++) {
+    		locations[2*sz_t + k] = vehicles.get(k).getCurrentCity().id;
+    	}
+    	return locations;
     }
-    
-  //Remove an integer value of a matrix knowing the index
-  	private int[] RemoveFromArrInt(int [] arr, int index) {
-  		// Create another array of size one less 
-          int[] anotherArray = new int[arr.length - 1]; 
-    
-          // Copy the elements except the index 
-          // from original array to the other array 
-          for (int i = 0, k = 0; i < arr.length; i++) { 
-    
-              // if the index is 
-              // the removal element index 
-              if (i == index) { 
-                  continue; 
-              } 
-    
-              // if the index is not 
-              // the removal element index 
-              anotherArray[k++] = arr[i]; 
-          } 
-          
-          // return the resultant array 
-          return anotherArray; 
-      } 
-  	
-  //Remove an integer value of a matrix knowing the integer value
-  	private int[] RemoveZerosFromArr(int [] arr) {
-  		int targetIndex = 0;
-  		for( int sourceIndex = 0;  sourceIndex < arr.length;  sourceIndex++ )
-  		{
-  		    if( arr[sourceIndex] != 0 )
-  		        arr[targetIndex++] = arr[sourceIndex];
-  		}
-  		int[] newArray = new int[targetIndex];
-  		System.arraycopy( arr, 0, newArray, 0, targetIndex );
-  		return newArray;
-      } 
-    
- // Linear-search function to find the index of an element 
-    public static int findIndex(String arr[], String t) 
-    { 
-        // if array is Null 
-        if (arr == null) { 
-            return -1; 
-        } 
-        // find length of array 
-        int len = arr.length; 
-        int i = 0; 
-  
-        // traverse in the array 
-        while (i < len) { 
-  
-            // if the i-th element is t 
-            // then return the index 
-            if (arr[i].equals(t)) { 
-                return i; 
-            } 
-            else { 
-                i = i + 1; 
-            } 
-        } 
-        return -1; 
+
+    //Change of the load of the vehicle after the action a
+    private int LoadChange(int a) {
+    	if (a < weights.length) {
+    		return weights[a];
+    	}
+    	return -weights[a - weights.length];
     }
-    
+
+    //Distance travelled between the action a and its next action b
+    private double Distance(int a, int b) {
+    	if (b == NULL) {
+    		return 0;
+    	}
+    	return distances.distance(locations[a], locations[b]);
+    }
+
+    //Change the next action of a to b. Only the edge leaving a is modified,
+    //so the cost of the solution is updated with the difference of the two edges
+    private void SetNextTask(Variables vars, int a, int b) {
+    	vars.cost += Distance(a, b) - Distance(a, vars.NextTasks[a]);
+    	vars.NextTasks[a] = b;
+    }
+
+    // Actions are encoded by integers : the pickup of task i is i, its delivery is n+i
+    // and the vehicle k is 2n+k (n being the number of tasks). NULL is the end of a plan.
     class Variables {
-    	public String[] index;
-    	public String[] NextTasks;
+    	public int[] NextTasks;
     	public int[] time;
     	public int[] vehicles;
-    	
-    	Variables(String[] idx, String[] next, int[] Time, int[] Vehicles) {
-    		this.index = idx;
+    	public int[] load; // load of the vehicle after each action
+    	public double cost; // total distance of the plans
+
+    	Variables(int[] next, int[] Time, int[] Vehicles) {
     		this.NextTasks = next;
     		this.time = Time;
     		this.vehicles = Vehicles;
+    		this.load = new int[Time.length];
+    	}
+
+    	// copy of a solution
+    	Variables(Variables vars) {
+    		this(vars.NextTasks.clone(), vars.time.clone(), vars.vehicles.clone());
+    		this.load = vars.load.clone();
+    		this.cost = vars.cost;
     	}
     }
-    
+
     private Plan VariablesToPlan(Vehicle vehicle, int vehicle_id, TaskSet tasks, Variables vars) {
     	City current = vehicle.getCurrentCity();
         Plan plan = new Plan(current);
         int sz_t = tasks.size(); // size of tasks
-        String first_task = vars.NextTasks[2*sz_t + vehicle_id]; //The first task of the vehicle
-        if (first_task.equals("NULL")){
+        int action = vars.NextTasks[2*sz_t + vehicle_id]; //The first action of the vehicle
+        if (action == NULL){
         	plan = Plan.EMPTY;
         }
-        while (first_task != "NULL") {
+        while (action != NULL) {
         	// Case for a Pickup action
-        	if (first_task.split("(?<=\\G.)")[0].equals("P") == true) {
-        		int task_nb = Integer.parseInt(first_task.replace(first_task.split("(?<=\\G.)")[0], "")); //The index of the pickup action
-        		int compt = 1;
-        		for (Task task : tasks) {
-        			if(compt == task_nb) { //Pickup the task
-        				for (City city : current.pathTo(task.pickupCity)) {
-        	                plan.appendMove(city);
-        	            }
-        				plan.appendPickup(task);
-        				current = task.pickupCity;
-        			}
-        			compt ++;
+        	if (action < sz_t) {
+        		Task task = task_list[action];
+        		for (City city : distances.path(current, task.pickupCity)) {
+        			plan.appendMove(city);
         		}
-        		first_task = vars.NextTasks[task_nb-1]; // The next task after finishing the current action
+        		plan.appendPickup(task);
+        		current = task.pickupCity;
         	}
         	// Case for a delivery action
-        	else if (first_task.split("(?<=\\G.)")[0].equals("D") == true) {
-        		int task_nb = Integer.parseInt(first_task.replace(first_task.split("(?<=\\G.)")[0], ""));
-        		int compt = 1;
-        		for (Task task : tasks) {
-        			if(compt == task_nb) { //Deliver the task
-        				for (City city : current.pathTo(task.deliveryCity)) {
-        	                plan.appendMove(city);
-        	            }
-        				plan.appendDelivery(task);
-        				current = task.deliveryCity;
-        			}
-        			compt ++;
+        	else {
+        		Task task = task_list[action - sz_t];
+        		for (City city : distances.path(current, task.deliveryCity)) {
+        			plan.appendMove(city);
         		}
-        		first_task = vars.NextTasks[sz_t + task_nb - 1]; // The next task after finishing the current action
+        		plan.appendDelivery(task);
+        		current = task.deliveryCity;
         	}
+        	action = vars.NextTasks[action]; // The next action after finishing the current one
         }
         return plan;
     }
-    
+
+    //Total distance of a solution. The arrays of the current search are used if they are built for these
+    //tasks and vehicles, else the locations are computed apart so that the search arrays are not changed.
     public double CalculateCost(List<Vehicle> vehicles, TaskSet tasks, Variables vars) {
+    	int[] locations = (tasks == search_tasks && vehicles == search_vehicles) ? this.locations : Locations(vehicles, tasks);
     	double cost = 0;
+    	int sz_t = tasks.size(); // size of tasks
     	for (int i = 0; i<vehicles.size(); i++) {
-    		Vehicle vehicle = vehicles.get(i);
-    		City current = vehicle.getCurrentCity();
-    		int sz_t = tasks.size(); // size of tasks
-    		String first_task = vars.NextTasks[findIndex(vars.index, "v" + Integer.toString(vehicle.id()+1))]; //The first task of the vehicle
-    		if (first_task.equals("NULL")){
-    			cost += 0;
-    		}
-    		while (first_task != "NULL") {
-    			// Case for a Pickup action
-    			if (first_task.split("(?<=\\G.)")[0].equals("P") == true) {
-    				int task_nb = Integer.parseInt(first_task.replace(first_task.split("(?<=\\G.)")[0], "")); //The index of the pickup action
-    				int compt = 1;
-    				for (Task task : tasks) {
-    					if(compt == task_nb) { //Pickup the task
-    						cost += current.distanceTo(task.pickupCity);
-    						current = task.pickupCity;
-    					}
-    					compt ++;
-    				}
-    				first_task = vars.NextTasks[task_nb-1]; // The next task after finishing the current action
-    			}
-    			// Case for a delivery action
-    			else if (first_task.split("(?<=\\G.)")[0].equals("D") == true) {
-    				int task_nb = Integer.parseInt(first_task.replace(first_task.split("(?<=\\G.)")[0], ""));
-    				int compt = 1;
-    				for (Task task : tasks) {
-    					if(compt == task_nb) { //Deliver the task
-    						cost += current.distanceTo(task.deliveryCity);
-    						current = task.deliveryCity;
-    					}
-    					compt ++;
-    				}
-    				first_task = vars.NextTasks[sz_t + task_nb - 1]; // The next task after finishing the current action
-    			}
+    		int action = 2*sz_t + i; // the vehicle is the first action of its plan
+    		while (vars.NextTasks[action] != NULL) {
+    			cost += distances.distance(locations[action], locations[vars.NextTasks[action]]);
+    			action = vars.NextTasks[action]; // The next action after finishing the current one
     		}
     	}
     	return cost;
     }
-    
-    private boolean check(String[] arr, String toCheckValue) 
-    { 
-        // check if the specified element 
-        // is present in the array or not 
-        // using Linear Search method 
-        boolean test = false; 
-        for (String element : arr) { 
-            if (element.equals(toCheckValue)) { 
-                test = true; 
-                return test;
-            }
-        } 
-        return test;
-    } 
-    private int occurence(String[] arr, String toCheckValue) 
-    { 
-        // check how many times the specified
-    	// element is present in the array
-        int test = 0; 
-        for (String element : arr) { 
-            if (element.equals(toCheckValue)) { 
-                test += 1; 
-            }
-        } 
-        return test;
-    }
-    
+
     private boolean Constraints(List<Vehicle> vehicles, TaskSet tasks, Variables vars) {
-    	// function for the constraints check 
+    	// function for the constraints check
     	// you can uncomment the warnings to see where the problem comes from
-    	
-      	boolean Bool = true; 
+
+      	boolean Bool = true;
      	int num_vehicles = vehicles.size();
      	int sz_t = tasks.size();
-     	int size_index = vars.index.length;
-     	int index_ = 0;
      	int size_next = vars.NextTasks.length; //size of nextTasks
 
       	//check if nextTask(t) != t
-     	for(int i=0; i<size_index; i++) {
-     		if(vars.index[i]==vars.NextTasks[i]) {
+     	for(int i=0; i<size_next; i++) {
+     		if(vars.NextTasks[i]==i) {
      			Bool = false;
      			//System.out.println("Warning1: nextTask(t) = t");
-     		}	
+     		}
      	}
-     	
+
       	//nextTask(vk) = tj ⇒ time(tj) = 1:
      	for(int i=0; i<num_vehicles; i++) {
-     		String task = vars.NextTasks[2*sz_t+i];
-     		index_ = findIndex(vars.index, task);
-     		if(index_!=-1)
-     			if(vars.time[index_]!=1) {
-
+     		int task = vars.NextTasks[2*sz_t+i];
+     		if(task!=NULL)
+     			if(vars.time[task]!=1) {
       				Bool = false;
      				//System.out.println("Warning2: nextTask(vk) = tj !⇒ time(tj) = 1");
-     			}	
+     			}
      	}
 
       	//nextTask(ti) = tj ⇒ time(tj) = time(ti) + 1 & nextTask(ti) = tj ⇒ vehicle(tj) = vehicle(ti):
      	for(int i=0; i<2*sz_t; i++) {
-     		String task = vars.NextTasks[i];
-     		index_ = findIndex(vars.index, task);
-     		if(index_!=-1) {
-     			String task2 = vars.NextTasks[index_];
-     			int index_2 = findIndex(vars.index, task2);
-     			if(index_2!=-1)
-     				if((vars.time[index_2]!=vars.time[index_]+1)||(vars.vehicles[index_]!=vars.vehicles[index_2])) {
-     					Bool = false;
-     					//System.out.println("Warning3: nextTask(ti) = tj !⇒ time(tj) = time(ti) + 1 or nextTask(ti) = tj !⇒ vehicle(tj) = vehicle(ti) ");
-     				}
-     		}
+     		int task = vars.NextTasks[i];
+     		if(task!=NULL)
+     			if((vars.time[task]!=vars.time[i]+1)||(vars.vehicles[i]!=vars.vehicles[task])) {
+     				Bool = false;
+     				//System.out.println("Warning3: nextTask(ti) = tj !⇒ time(tj) = time(ti) + 1 or nextTask(ti) = tj !⇒ vehicle(tj) = vehicle(ti) ");
+     			}
      	}
 
       	//nextTask(vk) = tj ⇒ vehicle(tj) = vk:
      	for(int i=0; i<num_vehicles; i++) {
-     		String task = vars.NextTasks[2*sz_t+i];
-     		index_ = findIndex(vars.index, task);
-     		if(index_!=-1)
-     			if(vars.vehicles[index_]!=i+1) {
+     		int task = vars.NextTasks[2*sz_t+i];
+     		if(task!=NULL)
+     			if(vars.vehicles[task]!=i) {
      				Bool = false;
      				//System.out.println("Warning4: nextTask(vk) = tj !⇒ vehicle(tj) = vk");
      			}
@@ -451,69 +480,66 @@ public class CentralizedTemplate implements CentralizedBehavior {
 
       	//all tasks must be delivered: the set of values of the variables in the
      	//nextTask array must be equal to the set of tasks T plus NV times the value NULL
-     	String[] values = vars.index;
-     	values = ChangeFromArray(values, 2*sz_t, "NULL");
+     	int[] occurence = new int[2*sz_t];
+     	int nb_null = 0;
      	for(int i=0; i<size_next; i++) {
-     		if(!(check(values, vars.NextTasks[i]))) {
+     		int task = vars.NextTasks[i];
+     		if(task==NULL) {
+     			nb_null++;
+     		}
+     		else if(task<0 || task>=2*sz_t || ++occurence[task]>1) {
      			Bool = false;
      			//System.out.println("Warning5:all tasks must be delivered ");
      		}
-
       	}
-     	if(occurence(vars.NextTasks, "NULL")!=num_vehicles) {
+     	if(nb_null!=num_vehicles) {
      		Bool = false;
      		//System.out.println("Warning6: all tasks must be delivered ");
      	}
+     	if(!Bool) {
+     		return Bool;
+     	}
 
       	//first task of vehicle must be different from a delivery action
-     	for(int i=2*sz_t; i<size_index; i++) {
-     		if(vars.NextTasks[i].split("(?<=\\G.)")[0].equals("D")) {
+     	for(int i=2*sz_t; i<size_next; i++) {
+     		if(vars.NextTasks[i]>=sz_t) {
      			//System.out.println("Warning7: first task of vehicle must be different from a delivery action");
      			Bool = false;
-     		}	
+     		}
      	}
 
       	//if load(ti) > capacity(vk) ⇒ vehicle(ti) = vk
      	int[] load = new int[num_vehicles];
      	for(int i=0; i<num_vehicles; i++) {
-     		Vehicle current_vehicle = vehicles.get(i);
-     		String task_ = vars.NextTasks[2*sz_t+i];
-     		while(!(task_.equals("NULL"))){
-             	int task_nb = Integer.parseInt(task_.replace(task_.split("(?<=\\G.)")[0], ""));
-             	int compt = 1;
-             	for (Task task : tasks) {
-             		if(compt == task_nb) {
-             			if (task_.split("(?<=\\G.)")[0].equals("P"))
-             				load[i] += task.weight;
-             				if(current_vehicle.capacity() < load[i]) {
-             					//System.out.println("Warning8: Vehicle "+i+" doesnt have capacity to take the task");
-             					Bool = false;
-             				}
-
-              			if (task_.split("(?<=\\G.)")[0].equals("D"))
-             				load[i] -= task.weight;
-             		}
-             		compt ++;	
-             	}
+     		int task_ = vars.NextTasks[2*sz_t+i];
+     		while(task_!=NULL){
+     			if (task_<sz_t) {
+     				load[i] += weights[task_];
+     				if(capacities[i] < load[i]) {
+     					//System.out.println("Warning8: Vehicle "+i+" doesnt have capacity to take the task");
+     					Bool = false;
+     				}
+     			}
+     			else {
+     				load[i] -= weights[task_ - sz_t];
+     			}
 
               	// go to next task of vehicle i
-             	// until this task is not null 
-             	index_ = findIndex(vars.index, task_);
-             	task_ = vars.NextTasks[index_];
-             	
+             	// until this task is not null
+             	task_ = vars.NextTasks[task_];
      		}
      	}
 
- 
-      	//the vehicle that picks up a task must deliver it 
-     	//if vehicle(Pi) = vk ⇒ vehicle(Di) = vk 
+
+      	//the vehicle that picks up a task must deliver it
+     	//if vehicle(Pi) = vk ⇒ vehicle(Di) = vk
      	for(int i=0; i<sz_t; i++) {
      		if(vars.vehicles[i]!=vars.vehicles[i+sz_t]) {
      			//System.out.println("Warning9: The vehicle that picks up a task must deliver it");
      			Bool = false;
      		}
      	}
-     	
+
      	for(int i=0; i<sz_t; i++) {
     		if(vars.time[i]>vars.time[i+sz_t]) {
     			//System.out.println("Warning10: A delivery action must come after a pickup action");
@@ -523,517 +549,603 @@ public class CentralizedTemplate implements CentralizedBehavior {
 
      	return Bool;
      }
-    
+
     private Variables SelectInitialSolution(List<Vehicle> vehicles, TaskSet tasks) {
     	int sz_t = tasks.size();
     	int sz_v = vehicles.size();
-    	String[] NextTasks = new String[2*sz_t+sz_v];
+    	int[] NextTasks = new int[2*sz_t+sz_v];
     	int[] Time = new int[2*sz_t];
-    	int[] Vehicle = new int [2*sz_t]; 
+    	int[] Vehicle = new int [2*sz_t];
     	int[] task_arr = new int[sz_t];
     	for (int i = 0; i<sz_t; i++) {
     		task_arr[i] = i;
     	}
-    	int time = 0;
-    	String [] index = new String[2*sz_t + sz_v];
-    	int size_index = index.length;
-    	
-    	//construct the index 
-    	for(int i=0; i<sz_t;i++) {
-    		index[i] = "P" + Integer.toString(i+1);
-    		index[i+sz_t] = "D" + Integer.toString(i+1);
-    	}
-    	int j = 1;
-    	for(int i=2*sz_t; i<size_index;i++) {
-    		
-    		index[i] = "v" + Integer.toString(j);
-    		j+=1;
-    	}
-    	
+    	Arrays.fill(NextTasks, NULL);
+
     	// if the number of tasks is less than the number of vehicles, all the tasks will be given to the first vehicle
     	if (sz_t < sz_v) {
-    		for (int i = 0; i<sz_t-1; i++) {
-        		NextTasks[i] = "D" + Integer.toString(i+1);
-        		Time[i] = 2*i+1;
-        		Vehicle[i] = 1;
-        		NextTasks[sz_t + i] = "P" + Integer.toString(i+2);
-        		Time[sz_t+i] = 2*(i+1);
-        		Vehicle[sz_t+i] = 1;
-        	}
-        	NextTasks[sz_t - 1] = "D" + Integer.toString(sz_t);
-        	NextTasks[2*sz_t-1] = "NULL";
-        	Time[sz_t-1] = 2*sz_t-1;
-        	Time[2*sz_t-1] = 2*sz_t;
-        	Vehicle[2*sz_t-1] = 1;
-        	Vehicle[sz_t-1] = 1;
-        	for (int l = 0; l<sz_v; l++) {
-        		NextTasks[2*sz_t + l] = "NULL";
-        	}
-        	NextTasks[2*sz_t] = "P1";
+    		int last = 2*sz_t; // the last action of the first vehicle
+    		for (int i = 0; i<sz_t; i++) {
+    			NextTasks[last] = i;
+    			NextTasks[i] = sz_t + i;
+    			Time[i] = 2*i+1;
+    			Time[sz_t+i] = 2*(i+1);
+    			Vehicle[i] = 0;
+    			Vehicle[sz_t+i] = 0;
+    			last = sz_t + i;
+    		}
     	}
-    	
+
     	else {
-    		int[] chose_task = new int[sz_t+sz_v];
+    		int[] last = new int[sz_v]; // the last action of each vehicle
+    		for (int k = 0; k<sz_v; k++) {
+    			last[k] = 2*sz_t + k;
+    		}
+    		int time = 0;
     		while (task_arr.length != 0) {
-    			for (int k = 0; k<sz_v; k++) {
-    				int random_task = Math.toIntExact(Math.round(Math.random()*(task_arr.length-1)));
-    				int task_nb = task_arr[random_task] + 1; //One of the remaining task is chosen randomly and is assigned to a vehicle
-    				chose_task[(time*sz_v)/2+k] = task_nb;
-    				if (time == 0) {
-    					NextTasks = ChangeFromArray(NextTasks, findIndex(index, "v"+ Integer.toString(vehicles.get(k).id()+1)), "P"+Integer.toString(task_nb)); //ANextTask(vi) = P_tasknb
-    					NextTasks = ChangeFromArray(NextTasks, findIndex(index, "P"+ Integer.toString(task_nb)), "D"+Integer.toString(task_nb)); //ANextTask(P_tasknb) = D_tasknb
-    					Time = ChangeFromArrayInt(Time, findIndex(index, "P"+ Integer.toString(task_nb)), time+1); //Set time for ATime(P_tasknb) 
-    					Time = ChangeFromArrayInt(Time, findIndex(index, "D"+ Integer.toString(task_nb)), time+2); //Set time for ATime(D_tasknb)
-    					Vehicle = ChangeFromArrayInt(Vehicle, findIndex(index, "P" + Integer.toString(task_nb)), k+1); //Set AVehicle(P_tasknb) with the vehicle chosen
-    					Vehicle = ChangeFromArrayInt(Vehicle, findIndex(index, "D" + Integer.toString(task_nb)), k+1); //Set AVehicle(D_tasknb) with the vehicle chosen
-    				}
-    				else {
-    					NextTasks = ChangeFromArray(NextTasks, findIndex(index, "D" + Integer.toString(chose_task[((time-2)*sz_v)/2+k])), "P" + Integer.toString(task_nb)); //ANextTask(Dpre) = P_tasknb
-    					NextTasks = ChangeFromArray(NextTasks, findIndex(index, "P" + Integer.toString(task_nb)), "D"+Integer.toString(task_nb)); //AnextTask(P_tasknb) = D_tasknb
-    					Time = ChangeFromArrayInt(Time, findIndex(index, "P"+ Integer.toString(task_nb)), time+1); //Set time for ATime(P_tasknb) 
-    					Time = ChangeFromArrayInt(Time, findIndex(index, "D"+ Integer.toString(task_nb)), time+2); //Set time for ATime(D_tasknb)
-    					Vehicle = ChangeFromArrayInt(Vehicle, findIndex(index, "P" + Integer.toString(task_nb)), k+1); //Set AVehicle(P_tasknb) with the vehicle chosen
-    					Vehicle = ChangeFromArrayInt(Vehicle, findIndex(index, "D" + Integer.toString(task_nb)), k+1); //Set AVehicle(D_tasknb) with the vehicle chosen
-    				}
+    			for (int k = 0; k<sz_v && task_arr.length != 0; k++) {
+    				int random_task = random.nextInt(task_arr.length);
+    				int task_nb = task_arr[random_task]; //One of the remaining task is chosen randomly and is assigned to a vehicle
+    				NextTasks[last[k]] = task_nb; //ANextTask(last) = P_tasknb
+    				NextTasks[task_nb] = sz_t + task_nb; //ANextTask(P_tasknb) = D_tasknb
+    				Time[task_nb] = time+1; //Set time for ATime(P_tasknb)
+    				Time[sz_t + task_nb] = time+2; //Set time for ATime(D_tasknb)
+    				Vehicle[task_nb] = k; //Set AVehicle(P_tasknb) with the vehicle chosen
+    				Vehicle[sz_t + task_nb] = k; //Set AVehicle(D_tasknb) with the vehicle chosen
+    				last[k] = sz_t + task_nb;
     				task_arr = RemoveFromArrInt(task_arr, random_task);
-    				if (task_arr.length == 0) {
-    					k = sz_v;
-    				}
     			}
     			time += 2;
     		}
-    		chose_task = RemoveZerosFromArr(chose_task);
-    		for (int k = 0; k<sz_v; k++) {
-    			NextTasks = ChangeFromArray(NextTasks, findIndex(index, "D" + Integer.toString(chose_task[chose_task.length-k-1])), "NULL"); //The nextTask of the last task delivery will be equal to NULL
-    		}
     	}
-    	Variables vars = new Variables(index, NextTasks, Time, Vehicle);
+    	Variables vars = new Variables(NextTasks, Time, Vehicle);
+    	for (int k = 0; k<sz_v; k++) {
+    		UpdateTime(vars, k);
+    	}
     	return vars;
     }
-    
-    private Variables SelectInitialSolution2(List<Vehicle> vehicles, Variables previous, Task task, TaskSet tasks) {		
-				
-    	int size_tasks= tasks.size();		
-    	int size_vehicles = vehicles.size();		
-    	int task_nb = task.id+1;		
-    			
-    	String[] NextTasks = new String[2*size_tasks+size_vehicles];		
-    	int[] Time = new int[2*size_tasks];		
-    	int[] Vehicle = new int [2*size_tasks]; 		
-    	int[] task_arr = new int[size_tasks];		
-    	String [] index = new String[2*size_tasks + size_vehicles];		
-    	int size_index = index.length;		
-    			
-    	//construct the index 		
-    	for(int i=0; i<size_tasks;i++) {		
-    		index[i] = "P" + Integer.toString(i+1);		
-    		index[i+size_tasks] = "D" + Integer.toString(i+1);		
-    	}		
-    	int j = 1;		
-    	for(int i=2*size_tasks; i<size_index;i++) {		
-    				
-    		index[i] = "v" + Integer.toString(j);		
-    		j+=1;		
-    	}		
-    					
-    	//update vehicles		
-    	for(int i=0; i<size_tasks-1;i++) {		
-    		Vehicle[i] = previous.vehicles[i];		
-    					
-    	}		
-    	//give this task to 1st vehicle		
-    	Vehicle[size_tasks-1] = 1;		
-    			
-    	for(int i=size_tasks; i<2*size_tasks-1;i++) {		
-    		Vehicle[i] = previous.vehicles[i-1];		
-    			
-    	}		
-    	//give this task to 1st vehicle		
-    	Vehicle[2*size_tasks-1] = 1;		
-    			
-    			
-    			
-    	//update NextTasks		
-    	String task_ = previous.NextTasks[findIndex(previous.index, "v" + Integer.toString(1))];		
-    	if(task_ == "NULL") {		
-    		NextTasks[findIndex(index, "v" + Integer.toString(1))]= "P" + Integer.toString(task_nb);
-    		NextTasks[findIndex(index, "P" + Integer.toString(task_nb))] =  "D" + Integer.toString(task_nb);		
-    		NextTasks[findIndex(index, "D" + Integer.toString(task_nb))] = "NULL";		
-    	}		
-    	else {		
-    		NextTasks[findIndex(index, "v" + Integer.toString(1))] = task_;		
-        	String test;		
-        	while(task_!="NULL") {		
-        				
-        		test = task_;		
-        		task_ = previous.NextTasks[findIndex(previous.index, task_)];		
-        				
-        		if(task_=="NULL")		
-        			//NextTasks[findIndex(index, task_)] =  "P" + Integer.toString(task_nb);		
-    				NextTasks[findIndex(index, test)] =  "P" + Integer.toString(task_nb);		
-        				
-        		else		
-        			NextTasks[findIndex(index, test)] = task_;		
-        	}		
-
-        	NextTasks[findIndex(index, "P" + Integer.toString(task_nb))] =  "D" + Integer.toString(task_nb);		
-        	NextTasks[findIndex(index, "D" + Integer.toString(task_nb))] = "NULL";		
-    				
-    	}		
-    			
-    	//int id = findIndex(previous.index, task_);		
-    	//String last_task = previous.index[id];		
-    	//NextTasks[findIndex(index, task_)] = task_;		
-    			
-    			
-    	//let the 2nd vehicle tasks the same		
-    	String task_2 = previous.NextTasks[findIndex(previous.index, "v" + Integer.toString(2))];		
-    			
-    	if(task_2 == "NULL") {		
-    		NextTasks[findIndex(index, "v" + Integer.toString(2))]= "NULL";		
-    	}		
-    	else {		
-    		String test;		
-    		NextTasks[findIndex(index, "v" + Integer.toString(2))] = task_2;		
-    				
-    		while(task_2!="NULL") {		
-        				
-    			test = task_2;		
-    			task_2 = previous.NextTasks[findIndex(previous.index, task_2)];		
-    			if(task_2=="NULL")		
-    				NextTasks[findIndex(index, test)] =  "NULL";		
-    					
-    			else {		
-		    				
-		    		//NextTasks[findIndex(index, task_2)] = task_2;		
-    				NextTasks[findIndex(index, test)] = task_2;		
-    			}		
-        	}		
-    	}		
-    			
-    			
-    			
-    			
-    	for(int i=0; i<2*size_tasks;i++) {		
-    		Time[i] = 0;		
-    	}		
-    					
-    //NextTasks, findIndex(index, "v"+ Integer.toString(vehicles.get(k).id()+1)), "P"+Integer.toString(task_nb));		
-    	Variables new_vars = new Variables(index, NextTasks, Time, Vehicle);		
-    					
-    	//System.out.println("time: "+Arrays.toString(new_vars.time));		
-    	//update time		
-    	for(int v=0; v<size_vehicles; v++) {		
-    		new_vars = UpdateTime(new_vars, vehicles.get(v));		
-    	}				
-    			
-    			
-    	return new_vars;		
+
+    //Index of an action of the previous solution (with one task less) in the new solution
+    private int Shift(int action, int old_size) {
+    	if (action == NULL || action < old_size) {
+    		return action;
+    	}
+    	if (action < 2*old_size) {
+    		return action + 1;
+    	}
+    	return action + 2;
     }
-    
-    private ArrayList<Variables> ChooseNeighbours (Variables vars, TaskSet tasks, List<Vehicle> vehicles) {
-    	ArrayList<Variables> N = new ArrayList<Variables>(); //N = {}
-    	Vehicle vehicle1 = vehicles.get(0);
-    	N.add(vars);
-    	// vi = random(v1..vNV ) such that Aold(nextTask(vi )) != NULL
-    	do {
-    		int rand = Math.toIntExact(Math.round(Math.random()*(vehicles.size()-1)));
-    		vehicle1 = vehicles.get(rand);
-    	} while (vars.NextTasks[findIndex(vars.index, "v" + Integer.toString(vehicle1.id()+1))] == "NULL");
-    	for (int i = 0; i<vehicles.size(); i++) {
-    		Vehicle vehicle2 = vehicles.get(i);
-    		if (vehicle1.id() != vehicle2.id()) {
-    			int count = 0;
-    			Variables neighbors = new Variables(vars.index, vars.NextTasks, vars.time, vars.vehicles);
-    			neighbors = ChangingVehicle(neighbors, vehicle1, vehicle2); //A = ChangingVehicle(Aold, vi, vj )
-    			if (Constraints(vehicles, tasks, neighbors)) {
-					N.add(neighbors); //N = N ∪ {A}
-				}
+
+    private Variables SelectInitialSolution2(List<Vehicle> vehicles, Variables previous, Task task, TaskSet tasks) {
+
+    	int size_tasks= tasks.size();
+    	int size_vehicles = vehicles.size();
+    	int old_size = size_tasks - 1;
+    	int task_nb = old_size; // the new task is the last one of the set
+
+    	int[] NextTasks = new int[2*size_tasks+size_vehicles];
+    	int[] Time = new int[2*size_tasks];
+    	int[] Vehicle = new int [2*size_tasks];
+
+    	//update vehicles
+    	for(int i=0; i<old_size;i++) {
+    		Vehicle[i] = previous.vehicles[i];
+    		Vehicle[size_tasks+i] = previous.vehicles[old_size+i];
+    	}
+    	//give this task to 1st vehicle
+    	Vehicle[task_nb] = 0;
+    	Vehicle[size_tasks+task_nb] = 0;
+
+    	//update NextTasks : keep the previous plan of each vehicle, the new task is done at the end by the 1st vehicle
+    	for(int k=0; k<size_vehicles; k++) {
+    		int pre = 2*size_tasks + k;
+    		int task_ = previous.NextTasks[2*old_size + k];
+    		while(task_!=NULL) {
+    			NextTasks[pre] = Shift(task_, old_size);
+    			pre = NextTasks[pre];
+    			task_ = previous.NextTasks[task_];
     		}
+    		if(k==0) {
+    			NextTasks[pre] = task_nb;
+    			NextTasks[task_nb] = size_tasks + task_nb;
+    			pre = size_tasks + task_nb;
+    		}
+    		NextTasks[pre] = NULL;
+    	}
+
+    	Variables new_vars = new Variables(NextTasks, Time, Vehicle);
+
+    	//update time
+    	for(int v=0; v<size_vehicles; v++) {
+    		UpdateTime(new_vars, v);
+    	}
+
+    	return new_vars;
+    }
+
+    // A run of the local search, with its own solution, pool of moves and best solution.
+    // The chains of ParallelSearch only share the read-only arrays of the search.
+    class Chain implements Callable<Variables> {
+    	private List<Vehicle> vehicles;
+    	private TaskSet tasks;
+    	public Variables vars;
+    	public Variables best;
+    	public ArrayList<Move> moves = new ArrayList<Move>(); // pool of moves, the neighbours of the current iteration
+    	public int nb_moves;
+    	public double conservative_rate;
+    	public SplittableRandom random;
+    	public long deadline; // end of the run in ms since the epoch, cycle_nb iterations if 0
+    	public long iterations;
+    	// tabu memory : the next action removed from each action, and the iteration until which
+    	// it cannot be set back
+    	public int[] tabu_next;
+    	public long[] tabu_until;
+    	// the plan of the vehicle whose neighbours are built : order[0] is the vehicle and order[p] its action at time p
+    	public int[] order;
+    	// the indices of the best moves in LocalChoice
+    	public int[] candidates = new int[16];
+    	public int nb_candidates;
+
+    	Chain(List<Vehicle> vehicles, TaskSet tasks, Variables vars, double conservative_rate, SplittableRandom random) {
+    		this.vehicles = vehicles;
+    		this.tasks = tasks;
+    		this.vars = vars;
+    		this.best = new Variables(vars);
+    		this.conservative_rate = conservative_rate;
+    		this.random = random;
+    		this.tabu_next = new int[vars.NextTasks.length];
+    		this.tabu_until = new long[vars.NextTasks.length];
+    		this.order = new int[vars.NextTasks.length];
     	}
-    	// Applying the Changing task order operator : 
-    	// compute the number of tasks of the vehicle
+
+    	//Run the search until the deadline and return the best solution
+    	public Variables call() {
+    		//List to store the costs for each iteration
+    		//ArrayList<Double> costs = new ArrayList<Double>();
+    		int count = 0;
+    		do {
+    			ChooseNeighbours(this, vars, tasks, vehicles);
+    			Move move = LocalChoice(this, vehicles, tasks);
+    			Apply(vars, move);
+    			SetTabu(this, move);
+    			if (vars.cost < best.cost) {
+    				best = new Variables(vars);
+    			}
+    			if(deadline == 0 && count+200>=cycle_nb) {
+    				costs.add(vars.cost);
+    			}
+    			//System.out.println("Cycle : " + count);
+    			count ++;
+    			iterations ++;
+    		} while(deadline == 0 ? count<cycle_nb : System.currentTimeMillis()<deadline);
+    		return best;
+    	}
+    }
+
+    // A move of the local search : the few next actions it changes, so that it can be
+    // evaluated and applied on the current solution without copying it
+    class Move {
+    	public int[] actions = new int[MAX_CHANGES]; // actions whose next action is changed
+    	public int[] values = new int[MAX_CHANGES]; // their new next action
+    	public int[] previous = new int[MAX_CHANGES]; // their old next action (undo log)
+    	public int size;
+    	public int task; // task given to vehicle2 (NULL if the vehicles do not change)
+    	public int vehicle1;
+    	public int vehicle2;
+    	public double delta; // change of the cost
+
+    	void Reset(int vehicle1, int vehicle2, int task) {
+    		this.size = 0;
+    		this.vehicle1 = vehicle1;
+    		this.vehicle2 = vehicle2;
+    		this.task = task;
+    		this.delta = 0;
+    	}
+
+    	void SetNext(int a, int b) {
+    		actions[size] = a;
+    		values[size] = b;
+    		size++;
+    	}
+    }
+
+    //Get a move from the pool of moves of the current iteration
+    private Move NewMove(Chain chain, int vehicle1, int vehicle2, int task) {
+    	if (chain.nb_moves == chain.moves.size()) {
+    		chain.moves.add(new Move());
+    	}
+    	Move move = chain.moves.get(chain.nb_moves);
+    	move.Reset(vehicle1, vehicle2, task);
+    	return move;
+    }
+
+    //Keep the last move given by NewMove in the neighbours
+    private void AddMove(Chain chain, List<Vehicle> vehicles, TaskSet tasks, Variables vars, Move move) {
+    	assert CheckMove(vehicles, tasks, vars, move) : "unfeasible neighbour";
+    	Evaluate(vars, move);
+    	chain.nb_moves++;
+    }
+
+    //Cost change of a move : its changes are applied then reverted on the NextTasks array
+    private void Evaluate(Variables vars, Move move) {
+    	double cost = vars.cost;
+    	for (int i = 0; i<move.size; i++) {
+    		move.previous[i] = vars.NextTasks[move.actions[i]];
+    		SetNextTask(vars, move.actions[i], move.values[i]);
+    	}
+    	move.delta = vars.cost - cost;
+    	for (int i = move.size-1; i>=0; i--) {
+    		vars.NextTasks[move.actions[i]] = move.previous[i];
+    	}
+    	vars.cost = cost;
+    }
+
+    //Apply a move on the solution
+    private void Apply(Variables vars, Move move) {
+    	if (move.size == 0) {
+    		return;
+    	}
+    	int sz_t = vars.time.length/2;
+    	for (int i = 0; i<move.size; i++) {
+    		move.previous[i] = vars.NextTasks[move.actions[i]];
+    		SetNextTask(vars, move.actions[i], move.values[i]);
+    	}
+    	if (move.task != NULL) {
+    		vars.vehicles[move.task] = move.vehicle2; //A1vehicle(picktask) = v2
+    		vars.vehicles[sz_t + move.task] = move.vehicle2; //A1vehicle(deltask) = v2
+    	}
+    	UpdateTime(vars, move.vehicle1);
+    	if (move.vehicle2 != move.vehicle1) {
+    		UpdateTime(vars, move.vehicle2);
+    	}
+    }
+
+    //Undo a move applied on the solution
+    private void Revert(Variables vars, Move move) {
+    	if (move.size == 0) {
+    		return;
+    	}
+    	int sz_t = vars.time.length/2;
+    	for (int i = move.size-1; i>=0; i--) {
+    		SetNextTask(vars, move.actions[i], move.previous[i]);
+    	}
+    	if (move.task != NULL) {
+    		vars.vehicles[move.task] = move.vehicle1;
+    		vars.vehicles[sz_t + move.task] = move.vehicle1;
+    	}
+    	UpdateTime(vars, move.vehicle1);
+    	if (move.vehicle2 != move.vehicle1) {
+    		UpdateTime(vars, move.vehicle2);
+    	}
+    }
+
+    //Debug check of a move with all the constraints, the move is applied then reverted
+    private boolean CheckMove(List<Vehicle> vehicles, TaskSet tasks, Variables vars, Move move) {
+    	Apply(vars, move);
+    	boolean feasible = Constraints(vehicles, tasks, vars);
+    	Revert(vars, move);
+    	return feasible;
+    }
+
+    //Fill the pool of moves with the neighbours of the solution. The first move does not change anything.
+    private void ChooseNeighbours (Chain chain, Variables vars, TaskSet tasks, List<Vehicle> vehicles) {
+    	int sz_t = tasks.size();
+    	int vehicle1 = 0;
+    	chain.nb_moves = 0;
+    	AddMove(chain, vehicles, tasks, vars, NewMove(chain, 0, 0, NULL)); //N = {Aold}
+    	// no vehicle has a task : there is no other neighbour
+    	boolean busy = false;
+    	for (int k = 0; k<vehicles.size(); k++) {
+    		busy |= vars.NextTasks[2*sz_t + k] != NULL;
+    	}
+    	if (!busy) {
+    		return;
+    	}
+    	// vi = random(v1..vNV ) such that Aold(nextTask(vi )) != NULL
+    	do {
+    		vehicle1 = chain.random.nextInt(vehicles.size());
+    	} while (vars.NextTasks[2*sz_t + vehicle1] == NULL);
+    	// the plan of the vehicle is walked once, the operators get the actions around the ones they move
+    	int[] order = chain.order;
     	int length = 0;
-    	String task = "v" + Integer.toString(vehicle1.id()+1); //t = vi // current task in the list
+    	int task = 2*sz_t + vehicle1; //t = vi // current task in the list
     	do {
-    		task = vars.NextTasks[findIndex(vars.index, task)]; //t = AoldnextTask(t)
+    		order[length] = task;
+    		task = vars.NextTasks[task]; //t = AoldnextTask(t)
     		length++;
-    	} while(task != "NULL");
+    	} while(task != NULL);
+
+    	int picktask = order[1];
+    	int tpre = order[vars.time[sz_t + picktask] - 1]; // the action before the delivery of the first task
+    	for (int vehicle2 = 0; vehicle2<vehicles.size(); vehicle2++) {
+    		if (vehicle1 != vehicle2) {
+    			Move move = ChangingVehicle(chain, vars, vehicle1, vehicle2, tpre); //A = ChangingVehicle(Aold, vi, vj )
+    			if (move != null) {
+    				AddMove(chain, vehicles, tasks, vars, move); //N = N ∪ {A}
+    			}
+    		}
+    	}
+    	// Applying the Changing task order operator
     	if (length >= 2) {
     		for (int tIdx1 = 1; tIdx1<length; tIdx1++) {
     			for (int tIdx2 = tIdx1+1; tIdx2<length; tIdx2 ++) {
-    				int count = 0;
-    				Variables neighbors = new Variables(vars.index, vars.NextTasks, vars.time, vars.vehicles);
-        			neighbors = ChangingTaskOrder(neighbors, vehicle1, tIdx1, tIdx2); //A = ChangingTaskOrder(Aold, vi, tIdx1, tIdx2)
-    				if (Constraints(vehicles, tasks, neighbors)) {
-    					N.add(neighbors); //N = N ∪ {A}
+    				//A = ChangingTaskOrder(Aold, vi, tIdx1, tIdx2)
+    				Move move = ChangingTaskOrder(chain, vars, vehicle1, order[tIdx1-1], order[tIdx1], order[tIdx2-1], order[tIdx2]);
+    				if (move != null) {
+    					AddMove(chain, vehicles, tasks, vars, move); //N = N ∪ {A}
     				}
     			}
     		}
     	}
-    	
-    	// Applying the Changing task order operator : 
-    	// compute the number of tasks of the vehicle
-    		for (int tIdx = 1; tIdx<tasks.size()+1; tIdx++) {
-    				Variables neighbors = new Variables(vars.index, vars.NextTasks, vars.time, vars.vehicles);
-        			neighbors = ChangingTaskOrderBlock(neighbors, vehicle1, tIdx); //A = ChangingTaskOrder(Aold, vi, tIdx1, tIdx2)
-    				if (Constraints(vehicles, tasks, neighbors)) {
-    					N.add(neighbors); //N = N ∪ {A}
-    				}
-    			}
-    	
-    	return N;
+
+    	// Applying the Changing task order block operator :
+    	// a task of the vehicle (pickup and delivery) is moved at the beginning of its plan
+    	for (int tIdx = 0; tIdx<sz_t; tIdx++) {
+    		// the task must be done by the vehicle
+    		if (vars.vehicles[tIdx] != vehicle1) {
+    			continue;
+    		}
+    		int tprepick = order[vars.time[tIdx] - 1];
+    		int tpredel = order[vars.time[sz_t + tIdx] - 1];
+    		Move move = ChangingTaskOrderBlock(chain, vars, vehicle1, tIdx, tprepick, tpredel); //A = ChangingTaskOrderBlock(Aold, vi, tIdx)
+    		if (move != null) {
+    			AddMove(chain, vehicles, tasks, vars, move); //N = N ∪ {A}
+    		}
+    	}
     }
 
-    
-    private Variables ChangingVehicle(Variables vars, Vehicle vehicle1, Vehicle vehicle2) {
-    	Variables changed = new Variables(vars.index, vars.NextTasks, vars.time, vars.vehicles); //A1 = A
-    	String picktask = changed.NextTasks[findIndex(changed.index, "v" + Integer.toString(vehicle1.id()+1))]; // t = nextTask(v1)
-    	
-    	
-    	String nextTask = changed.NextTasks[findIndex(changed.index, picktask)]; //A1nextTask(t)
-    	String futureTask = changed.NextTasks[findIndex(changed.index, nextTask)]; //A1nextTask(nextTask)
-    	
-    	//Find the corresponding delivery task of the new first task of vehicle 2
-		int task_nb = Integer.parseInt(picktask.replace(picktask.split("(?<=\\G.)")[0], ""));
-		int index = 0;
-		for (int i = 0; i<changed.NextTasks.length; i++) {
-			if (changed.NextTasks[i] != "NULL") {
-				int number = Integer.parseInt(changed.NextTasks[i].replace(changed.NextTasks[i].split("(?<=\\G.)")[0], ""));
-				if (number == task_nb && changed.NextTasks[i].split("(?<=\\G.)")[0].equals("D")) {
-					index = i;
-				}
-			}
-		}
-	
-		//tpre is the action before the selected delivery and tpost the action after
-	
-		String tpre = changed.index[index];
-		String deltask = changed.NextTasks[findIndex(changed.index, tpre)];
-		String tpost = changed.NextTasks[findIndex(changed.index, deltask)];
-    	
-    	if (nextTask.equals(deltask)) {
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, "v" + Integer.toString(vehicle1.id()+1)), futureTask); // A1nextTask(v1) =A1nextTask(nexttask) = futuretask
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, nextTask), changed.NextTasks[ findIndex(changed.index, "v" + Integer.toString(vehicle2.id()+1))]); // A1nextTask(deltask) =A1nextTask(v2)
-        	changed.NextTasks = ChangeFromArray(changed.NextTasks,  findIndex(changed.index, "v" + Integer.toString(vehicle2.id()+1)),  picktask); // A1nextTask(v2) =picktask
-        	changed.NextTasks = ChangeFromArray(changed.NextTasks,  findIndex(changed.index, picktask),  deltask); // A1nextTask(picktask) =deltask
+
+    //Give the first task of vehicle1 to vehicle2, tpre is the action before its delivery.
+    //Returns null if the move is not feasible.
+    private Move ChangingVehicle(Chain chain, Variables vars, int vehicle1, int vehicle2, int tpre) {
+    	int sz_t = vars.time.length/2;
+    	int v1 = 2*sz_t + vehicle1;
+    	int v2 = 2*sz_t + vehicle2;
+    	int picktask = vars.NextTasks[v1]; // t = nextTask(v1)
+    	int deltask = sz_t + picktask; // the corresponding delivery
+
+    	// the task is done alone at the beginning of the plan of v2, the loads of
+    	// the other actions do not change so only its weight has to be checked
+    	if (weights[picktask] > capacities[vehicle2]) {
+    		return null;
     	}
-    	
+
+    	int nextTask = vars.NextTasks[picktask]; //AnextTask(t)
+    	int futureTask = vars.NextTasks[nextTask]; //AnextTask(nextTask)
+
+		//tpost is the action after the selected delivery
+		int tpost = vars.NextTasks[deltask];
+
+		Move move = NewMove(chain, vehicle1, vehicle2, picktask);
+    	if (nextTask == deltask) {
+    		move.SetNext(v1, futureTask); // A1nextTask(v1) =A1nextTask(nexttask) = futuretask
+    		move.SetNext(deltask, vars.NextTasks[v2]); // A1nextTask(deltask) =A1nextTask(v2)
+    		move.SetNext(v2, picktask); // A1nextTask(v2) =picktask
+    		move.SetNext(picktask, deltask); // A1nextTask(picktask) =deltask
+    	}
+
     	else {
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, "v" + Integer.toString(vehicle1.id()+1)), nextTask); // A1nextTask(v1) =nexttask
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, tpre), tpost); // A1nextTask(tpre) = tpost
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, deltask), changed.NextTasks[ findIndex(changed.index, "v" + Integer.toString(vehicle2.id()+1))]); // A1nextTask(deltask) =A1nextTask(v2)
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks,  findIndex(changed.index, "v" + Integer.toString(vehicle2.id()+1)),  picktask); // A1nextTask(v2) =picktask
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks,  findIndex(changed.index, picktask),  deltask); // A1nextTask(picktask) =deltask
+    		move.SetNext(v1, nextTask); // A1nextTask(v1) =nexttask
+    		move.SetNext(tpre, tpost); // A1nextTask(tpre) = tpost
+    		move.SetNext(deltask, vars.NextTasks[v2]); // A1nextTask(deltask) =A1nextTask(v2)
+    		move.SetNext(v2, picktask); // A1nextTask(v2) =picktask
+    		move.SetNext(picktask, deltask); // A1nextTask(picktask) =deltask
     	}
-    	
-    	changed = UpdateTime(changed, vehicle1);
-    	changed = UpdateTime(changed, vehicle2);
-    	changed.vehicles = ChangeFromArrayInt(changed.vehicles, findIndex(changed.index, picktask), vehicle2.id()+1); //A1vehicle(picktask) = v2
-    	changed.vehicles = ChangeFromArrayInt(changed.vehicles, findIndex(changed.index, deltask), vehicle2.id()+1); //A1vehicle(deltask) = v2;
-    	return changed;
+    	return move;
     }
-    
-    private Variables ChangingTaskOrder(Variables vars, Vehicle vehicle, int tidx1, int tidx2) {
-    	Variables changed = new Variables(vars.index, vars.NextTasks, vars.time, vars.vehicles); //A1 = A
-    	String tPre1 = "v" + Integer.toString(vehicle.id()+1);
-    	String tPre2 = "";
-    	String task1 = vars.NextTasks[findIndex(vars.index, tPre1)]; //t1 = A1nextT ask(tP re1 ) // task1
-    	int count = 1;
-    	while (count < tidx1) {
-    		String replace = task1;
-    		tPre1 = tPre1.replace(tPre1, task1); //tPre1 =t1
-    		task1 = vars.NextTasks[findIndex(changed.index, task1)];//t1 =A1nextTask(t1)
-    		count++;
-    	}
-    	String tPost1 = changed.NextTasks[findIndex(changed.index, task1)];//tPost1 = A1nextTask(t1 ) // the task delivered after t1
-    	tPre2 = tPre2.replace(tPre2, task1);//tPre2 = t1 // previous task of task2
-    	String task2 = changed.NextTasks[findIndex(changed.index, tPre2)];//t2 = A1nextTask(tPre2 ) // task2
-    	count++;
-    	while (count < tidx2) {
-    		String replace = task2; 
-    		tPre2 = tPre2.replace(tPre2, replace); //tPre2 =t2
-    		task2 = changed.NextTasks[findIndex(changed.index, task2)];//t2 =A1nextTask(t2)
-    		count++;
-    	}
-    	String tPost2 = changed.NextTasks[findIndex(changed.index, task2)];//tPost2 = A1nextTask(t2) // the task delivered after t2
+
+    //Exchange the actions task1 and task2 (task1 first) of the plan of the vehicle, tPre1 and tPre2
+    //are the actions before them. Returns null if the move is not feasible.
+    private Move ChangingTaskOrder(Chain chain, Variables vars, int vehicle, int tPre1, int task1, int tPre2, int task2) {
+    	int sz_t = vars.time.length/2;
+    	int tPost1 = vars.NextTasks[task1];//tPost1 = AnextTask(t1) // the task delivered after t1
+    	int tPost2 = vars.NextTasks[task2];//tPost2 = AnextTask(t2) // the task delivered after t2
+
+    	// t1 goes at the place of t2 : a pickup must stay before its delivery
+    	if (task1 < sz_t && vars.time[sz_t + task1] <= vars.time[task2]) {
+    		return null;
+    	}
+    	// t2 goes at the place of t1 : a delivery must stay after its pickup
+    	if (task2 >= sz_t && vars.time[task2 - sz_t] >= vars.time[task1]) {
+    		return null;
+    	}
+    	// only the loads from t1 to the action before t2 are modified
+    	int diff = LoadChange(task2) - LoadChange(task1);
+    	if (diff > 0) {
+    		for (int t = task1; t != task2; t = vars.NextTasks[t]) {
+    			if (vars.load[t] + diff > capacities[vehicle]) {
+    				return null;
+    			}
+    		}
+    	}
+
+    	Move move = NewMove(chain, vehicle, vehicle, NULL);
     	// exchanging two tasks
-    	if(tPost1.equals(task2)) {
+    	if(tPost1 == task2) {
     		// the task t2 is delivered immediately after t1
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, tPre1), task2);  //A1nextTask(tPre1) =t2
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, task2), task1); //A1nextTask(t2) =t1
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, task1), tPost2);//A1nextTask(t1) =tPost2
+    		move.SetNext(tPre1, task2);  //A1nextTask(tPre1) =t2
+    		move.SetNext(task2, task1); //A1nextTask(t2) =t1
+    		move.SetNext(task1, tPost2);//A1nextTask(t1) =tPost2
     	}
     	else {
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, tPre1), task2);//A1nextTask(tPre1) =t2
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, tPre2), task1); //A1nextTask(tPre2) =t1
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, task2), tPost1);//A1nextTask(t2) =tPost1
-    		changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, task1), tPost2);//A1nextTask(t1) =tPost2
+    		move.SetNext(tPre1, task2);//A1nextTask(tPre1) =t2
+    		move.SetNext(tPre2, task1); //A1nextTask(tPre2) =t1
+    		move.SetNext(task2, tPost1);//A1nextTask(t2) =tPost1
+    		move.SetNext(task1, tPost2);//A1nextTask(t1) =tPost2
     	}
-    	changed = UpdateTime(changed, vehicle);
-    	return changed;
+    	return move;
     }
-    
-    private Variables ChangingTaskOrderBlock(Variables vars, Vehicle vehicle, int tidx) {
-    	Variables changed = new Variables(vars.index, vars.NextTasks, vars.time, vars.vehicles); //A1 = A
-    	
-    	String task = "v" + Integer.toString(vehicle.id()+1); //t = vi // current task in the list
-    	Boolean task_exist = false;
-    	while(task != "NULL") {
-    		task = vars.NextTasks[findIndex(vars.index, task)]; //t = AoldnextTask(t)
-    		if (task!="NULL") {
-    			int number = Integer.parseInt(task.replace(task.split("(?<=\\G.)")[0], ""));
-    			if (number == tidx) {
-    				task_exist = true;
-    			}
+
+    //Move the pickup and the delivery of the task tidx of the vehicle at the beginning of its plan,
+    //tprepick and tpredel are the actions before them. Returns null if the task is already at the beginning.
+    private Move ChangingTaskOrderBlock(Chain chain, Variables vars, int vehicle, int tidx, int tprepick, int tpredel) {
+    	int sz_t = vars.time.length/2;
+    	int v = 2*sz_t + vehicle;
+
+    	// the plan stays feasible : the task is delivered before the other actions
+    	// so their loads can only decrease
+
+    	int picktask1 = tidx;
+    	int deltask1 = sz_t + tidx;
+    	int tpostpick = vars.NextTasks[picktask1];
+    	int tpostdel = vars.NextTasks[deltask1];
+
+    	// the task is already at the beginning of the plan
+    	if (tprepick == v && tpostpick == deltask1) {
+    		return null;
+    	}
+
+    	// remove the delivery and the pickup from the plan
+    	int afterpick = (tpredel == picktask1) ? tpostdel : tpostpick;
+    	int nexttask = (tprepick == v) ? afterpick : vars.NextTasks[v];
+    	Move move = NewMove(chain, vehicle, vehicle, NULL);
+    	move.SetNext(tpredel, tpostdel);
+    	move.SetNext(tprepick, afterpick);
+
+    	// put them at the beginning of the plan
+    	move.SetNext(v, picktask1); //Anexttask(vi) = picktask
+    	move.SetNext(picktask1, deltask1);
+    	move.SetNext(deltask1, nexttask);
+    	return move;
+    }
+
+    //Choose the move to apply among the neighbours of the pool
+    private Move LocalChoice (Chain chain, List<Vehicle> vehicles, TaskSet tasks) {
+    	if (chain.nb_moves == 1) {
+    		return chain.moves.get(0);
+    	}
+    	if (chain.candidates.length < chain.nb_moves) {
+    		chain.candidates = new int[chain.moves.size()];
+    	}
+    	double proba = chain.random.nextDouble();
+    	//System.out.println("The number of neighbours is : " + (chain.nb_moves-1));
+    	double cost = BestMoves(chain, false);
+    	// all the neighbours are tabu
+    	if (chain.nb_candidates == 0) {
+    		chain.candidates[chain.nb_candidates++] = 1 + chain.random.nextInt(chain.nb_moves-1);
+    		cost = chain.moves.get(chain.candidates[0]).delta;
+    	}
+
+    	// on a plateau the current solution is tabu : the best neighbour with a different cost is chosen
+    	boolean plateau = (Math.abs(cost) < EPSILON);
+    	if (plateau) {
+    		BestMoves(chain, true);
+    		if (chain.nb_candidates == 0) {
+    			int move = RandomMove(chain, 1);
+    			chain.candidates[chain.nb_candidates++] = (move != NULL) ? move : 1;
     		}
-    	} 
-    	
-    	if (task_exist == false) {
-    		return changed;
     	}
-    	
-    	else {
-    	
-    	//Find the corresponding delivery task of the new first task of vehicle 2
-		int pickindex = 0;
-		for (int i = 0; i<changed.NextTasks.length; i++) {
-			if (changed.NextTasks[i] != "NULL") {
-				int number = Integer.parseInt(changed.NextTasks[i].replace(changed.NextTasks[i].split("(?<=\\G.)")[0], ""));
-				if (number == tidx && changed.NextTasks[i].split("(?<=\\G.)")[0].equals("P")) {
-					pickindex = i;
-				}
-			}
-		}
-    	
-    	//Find the corresponding delivery task of the new first task of vehicle 2
-    			int delindex = 0;
-    			for (int i = 0; i<changed.NextTasks.length; i++) {
-    				if (changed.NextTasks[i] != "NULL") {
-    					int number = Integer.parseInt(changed.NextTasks[i].replace(changed.NextTasks[i].split("(?<=\\G.)")[0], ""));
-    					if (number == tidx && changed.NextTasks[i].split("(?<=\\G.)")[0].equals("D")) {
-    						delindex = i;
-    					}
-    				}
-    			}
-    			
-    			String tpredel = changed.index[delindex];
-    			String deltask1 = changed.NextTasks[findIndex(changed.index, tpredel)];
-    			String tpostdel = changed.NextTasks[findIndex(changed.index, deltask1)];
-    			
-    			String tprepick = changed.index[pickindex];
-    			String picktask1 = changed.NextTasks[findIndex(changed.index, tprepick)];
-    			String tpostpick = changed.NextTasks[findIndex(changed.index, picktask1)];
- 
-    			String nexttask = changed.NextTasks[findIndex(changed.index, "v" + (vehicle.id()+1))];
-    			
-    			if (picktask1.equals(nexttask)) {
-  				
-    				if (deltask1.equals(tpostpick)) {
-    					
-    					changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, "v" + (vehicle.id()+1)), picktask1); //Anexttask(vi) = picktask
-            			changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, picktask1), deltask1);
-            			changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, deltask1), tpostdel);
-    				}
-    				else {
-    				
-    					changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, "v" + (vehicle.id()+1)), picktask1); //Anexttask(vi) = picktask
-    					changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, picktask1), deltask1);
-    					changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, deltask1), tpostpick);
-    					changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, tpredel), tpostdel);
-    				}
-    			
-    			}
-    			
-    			else {
-    				
-    				changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, "v" + (vehicle.id()+1)), picktask1); //Anexttask(vi) = picktask
-    				changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, picktask1), deltask1);
-    				changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, deltask1), nexttask);
-    				changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, tprepick), tpostpick);
-    				changed.NextTasks = ChangeFromArray(changed.NextTasks, findIndex(changed.index, tpredel), tpostdel);
-    			}
-    	
-    	changed = UpdateTime(changed, vehicle);
-    	return changed;
+
+    	if(proba > chain.conservative_rate) {
+    		int move = RandomMove(chain, plateau ? 1 : 0);
+    		if (move != NULL) {
+    			return chain.moves.get(move);
+    		}
     	}
+    	int random = chain.random.nextInt(chain.nb_candidates);
+    	return chain.moves.get(chain.candidates[random]);
     }
-    
-    private Variables LocalChoice (ArrayList<Variables> neighbors_vars, List<Vehicle> vehicles, TaskSet tasks) {
-    	Variables next = neighbors_vars.get(0);
-    	do {
-    		double proba = Math.random();
-    		ArrayList<Integer> index = new ArrayList<Integer>();
-    		System.out.println("The number of neighbours is : " + (neighbors_vars.size()-1));
-    		double previous_cost = CalculateCost(vehicles, tasks, neighbors_vars.get(0));
-    		double cost = CalculateCost(vehicles, tasks, neighbors_vars.get(1));
-    		int idx = 1;
-    		for (int i= 1; i<neighbors_vars.size(); i++) {
-    			double new_cost = CalculateCost(vehicles, tasks, neighbors_vars.get(i));
-    			if (new_cost < cost) {
-    				index = new ArrayList<Integer>();
-    				cost = new_cost;
-    				index.add(i);
-    			}
-    			else if (new_cost == cost) {
-    				index.add(i);
-    			}
+
+    //Draw the index of a non tabu move among the moves from first on, NULL if nb_moves draws only gave tabu moves
+    private int RandomMove(Chain chain, int first) {
+    	for (int draw = 0; draw<chain.nb_moves; draw++) {
+    		int move = first + chain.random.nextInt(chain.nb_moves-first);
+    		if (!IsTabu(chain, chain.moves.get(move))) {
+    			return move;
     		}
-    	
-    		if (cost == previous_cost) {
-    			tabu.add(neighbors_vars.get(0));
-    			index = new ArrayList<Integer>();
-    			idx = 1;
-    			do {
-    				idx++;
-    			} while (CalculateCost(vehicles, tasks, neighbors_vars.get(idx)) == previous_cost && idx != neighbors_vars.size()-1);
-    			index.add(idx);
-    			cost = CalculateCost(vehicles, tasks, neighbors_vars.get(idx));
-    			for (int i= idx; i<neighbors_vars.size(); i++) {
-    				double new_cost = CalculateCost(vehicles, tasks, neighbors_vars.get(i));
-    				if (new_cost < cost && new_cost != previous_cost) {
-    					index = new ArrayList<Integer>();
-    					cost = new_cost;
-    					index.add(i);
-    				}
-    				else if (new_cost == cost) {
-    					index.add(i);
-    				}
-    			}
+    	}
+    	return NULL;
+    }
+
+    //Put the non tabu moves of smallest cost change (not 0 if nonzero) in the candidates of the chain,
+    //returns their cost change
+    private double BestMoves(Chain chain, boolean nonzero) {
+    	chain.nb_candidates = 0;
+    	double cost = Double.POSITIVE_INFINITY;
+    	for (int i= 1; i<chain.nb_moves; i++) {
+    		if (IsTabu(chain, chain.moves.get(i))) {
+    			continue;
     		}
-    	
-    		int random = (int) (Math.random()*index.size());
-    		idx = index.get(random);
-    	
-    		if(proba > conservative_rate) {
-    			int rand = (int) (Math.random()*neighbors_vars.size());
-    			next = neighbors_vars.get(rand);
+    		double new_cost = chain.moves.get(i).delta;
+    		if (new_cost < cost && !(nonzero && Math.abs(new_cost) < EPSILON)) {
+    			chain.nb_candidates = 0;
+    			cost = new_cost;
+    			chain.candidates[chain.nb_candidates++] = i;
     		}
-    		else {
-    			next = neighbors_vars.get(idx);
-    			if (CalculateCost(vehicles, tasks, next) < CalculateCost(vehicles, tasks, best)) {
-    				best = next;
-    			}
+    		else if (new_cost == cost) {
+    			chain.candidates[chain.nb_candidates++] = i;
     		}
-    	} while (tabu.contains(next));
-    	return next;
-    		
+    	}
+    	return cost;
     }
-    
-    private Variables UpdateTime (Variables vars, Vehicle vehicle1) {
-    	Variables changed = new Variables(vars.index, vars.NextTasks, vars.time, vars.vehicles);
-    	String task = changed.NextTasks[findIndex(changed.index, "v" + Integer.toString(vehicle1.id()+1))]; //ti =AnextTask(vi)
-    	if (task != "NULL") {
-    		changed.time = ChangeFromArrayInt(changed.time, findIndex(changed.index, task),  1);
-    		do {
-    			String next_task = changed.NextTasks[findIndex(changed.index, task)]; //tj =AnextTask(ti)
-    			if (next_task != "NULL") {
-    				changed.time = ChangeFromArrayInt(changed.time, findIndex(changed.index, next_task), (changed.time[findIndex(changed.index, task)] + 1)); //Atime(tj ) = Atime(ti ) + 1
-    				String replace = next_task;
-    				task = task.replace(task, replace);
-    			}
-    		} while(changed.NextTasks[findIndex(changed.index, task)] != "NULL");
+
+    //A move is tabu if it sets back a next action removed less than TABU_TENURE iterations ago,
+    //unless it improves the best solution of the chain
+    private boolean IsTabu(Chain chain, Move move) {
+    	if (chain.vars.cost + move.delta < chain.best.cost) {
+    		return false;
+    	}
+    	for (int i = 0; i<move.size; i++) {
+    		int a = move.actions[i];
+    		if (!LastWrite(move, i)) {
+    			continue;
+    		}
+    		if (chain.tabu_until[a] > chain.iterations && chain.tabu_next[a] == move.values[i]) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+    //Remember the next actions removed by the move that was just applied
+    private void SetTabu(Chain chain, Move move) {
+    	for (int i = 0; i<move.size; i++) {
+    		int a = move.actions[i];
+    		if (!LastWrite(move, i)) {
+    			continue;
+    		}
+    		//an action written twice keeps the next action it had before the move
+    		int removed = move.previous[FirstWrite(move, i)];
+    		if (removed == move.values[i]) {
+    			continue;
+    		}
+    		chain.tabu_next[a] = removed;
+    		chain.tabu_until[a] = chain.iterations + TABU_TENURE;
+    	}
+    }
+
+    //True if the i-th change of the move is the final value of its action
+    private boolean LastWrite(Move move, int i) {
+    	for (int j = i+1; j<move.size; j++) {
+    		if (move.actions[j] == move.actions[i]) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+    //Index of the first change of the move on the action of the i-th change
+    private int FirstWrite(Move move, int i) {
+    	for (int j = 0; j<i; j++) {
+    		if (move.actions[j] == move.actions[i]) {
+    			return j;
+    		}
+    	}
+    	return i;
+    }
+
+    //Update the time and the load of the actions of a vehicle after its plan was changed
+    private void UpdateTime (Variables vars, int vehicle1) {
+    	int sz_t = vars.time.length/2;
+    	int task = vars.NextTasks[2*sz_t + vehicle1]; //ti =AnextTask(vi)
+    	int time = 1;
+    	int load = 0;
+    	while (task != NULL) {
+    		vars.time[task] = time; //Atime(tj ) = Atime(ti ) + 1
+    		load += LoadChange(task);
+    		vars.load[task] = load; //Aload(tj ) = Aload(ti ) + weight(tj)
+    		time++;
+    		task = vars.NextTasks[task]; //tj =AnextTask(ti)
     	}
-    	return changed;
     }
 }
@@ -3,6 +3,7 @@ import java.awt.Color;
 import uchicago.src.sim.gui.Drawable;
 import uchicago.src.sim.gui.SimGraphics;
 import uchicago.src.sim.space.Object2DTorus;
+import uchicago.src.sim.util.Random;
 
 
 /**
@@ -37,8 +38,8 @@ public class RabbitsGrassSimulationAgent implements Drawable {
 		    vX = 0;
 		    vY = 0;
 		    while((vX == 0) && ( vY == 0)){
-		      vX = (int)Math.floor(Math.random() * 3) - 1;
-		      vY = (int)Math.floor(Math.random() * 3) - 1;
+		      vX = Random.uniform.nextIntFromTo(-1, 1);
+		      vY = Random.uniform.nextIntFromTo(-1, 1);
 		    }
 		  }
 
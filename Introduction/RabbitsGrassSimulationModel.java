@@ -12,6 +12,7 @@ import uchicago.src.sim.gui.DisplaySurface;
 import uchicago.src.sim.gui.ColorMap;
 import uchicago.src.sim.gui.Object2DDisplay;
 import uchicago.src.sim.gui.Value2DDisplay;
+import uchicago.src.sim.util.Random;
 import uchicago.src.sim.util.SimUtilities;
 
 
@@ -101,6 +102,8 @@ public class RabbitsGrassSimulationModel extends SimModelImpl {
 		
 		public void buildModel(){
 			System.out.println("Running BuildModel");
+			// all the random draws of the simulation use the generator seeded with the RngSeed parameter
+			Random.createUniform();
 		    rgsSpace = new RabbitsGrassSimulationSpace(torusSize);
 		    rgsSpace.spreadGrass(numInitGrass);
 		    
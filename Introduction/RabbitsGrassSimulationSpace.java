@@ -1,4 +1,5 @@
 import uchicago.src.sim.space.Object2DTorus;
+import uchicago.src.sim.util.Random;
 
 /**
  * Class that implements the simulation space of the rabbits grass simulation.
@@ -24,8 +25,8 @@ public class RabbitsGrassSimulationSpace {
 		    for(int i = 0; i < numInitGrass; i++){
 
 		      // Choose coordinates
-		      int x = (int)(Math.random()*(grassSpace.getSizeX()));
-		      int y = (int)(Math.random()*(grassSpace.getSizeY()));
+		      int x = Random.uniform.nextIntFromTo(0, grassSpace.getSizeX() - 1);
+		      int y = Random.uniform.nextIntFromTo(0, grassSpace.getSizeY() - 1);
 
 		      // Get the value of the object at those coordinates
 		      int currentValue = getGrassAt(x, y);
@@ -42,8 +43,8 @@ public class RabbitsGrassSimulationSpace {
 		  for(int i = 0; i < grassGrowthRate; i++){
 			
 			  // Choose coordinates
-		      int x = (int)(Math.random()*(grassSpace.getSizeX()));
-		      int y = (int)(Math.random()*(grassSpace.getSizeY()));
+		      int x = Random.uniform.nextIntFromTo(0, grassSpace.getSizeX() - 1);
+		      int y = Random.uniform.nextIntFromTo(0, grassSpace.getSizeY() - 1);
 
 		      // Get the value of the object at those coordinates
 		      int currentValue = getGrassAt(x, y);
@@ -88,8 +89,8 @@ public class RabbitsGrassSimulationSpace {
 		    int countLimit = 10 * agentSpace.getSizeX() * agentSpace.getSizeY();
 
 		    while((retVal==false) && (count < countLimit)){
-		      int x = (int)(Math.random()*(agentSpace.getSizeX()));
-		      int y = (int)(Math.random()*(agentSpace.getSizeY()));
+		      int x = Random.uniform.nextIntFromTo(0, agentSpace.getSizeX() - 1);
+		      int y = Random.uniform.nextIntFromTo(0, agentSpace.getSizeY() - 1);
 		      if(isCellOccupied(x,y) == false){
 		        agentSpace.putObjectAt(x,y,agent);
 		        agent.setXY(x,y);
@@ -1,8 +1,13 @@
 package template;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import logist.simulation.Vehicle;
 import logist.agent.Agent;
@@ -16,17 +21,33 @@ import logist.topology.Topology;
 import logist.topology.Topology.City;
 
 public class ReactiveTemplate implements ReactiveBehavior {
+	
+	// The algorithms solving the MDP
+	enum Solver { JACOBI, GAUSS_SEIDEL, PRIORITIZED, POLICY }
 
 	private Random random;
 	private double pPickup;
+	private Solver solver;
+	private double epsilon;
+	private int threads; // threads of the JACOBI sweeps
 	private double cost_per_km;
 	private int numActions;
 	private Agent myAgent;
 	private TaskDistribution myDistribution;
 	private Topology myTopology;
-	private double [][] rewardMatrix;
-	private double [][][] transitionMatrix;
+	private Distances distances;
+	// A state is a city and the destination of the task offered there (size if there is none) :
+	// s = city*(size+1) + destination. The actions are the pickup or a move to a neighbour.
+	private double [] pickupReward; // pickupReward[city*size + destination]
+	private double [] taskProbability; // taskProbability[city*size + destination]
+	private double [] noTaskProbability;
+	// the moves in compressed sparse rows : the neighbours of a city are moveCity[moveStart[city]] to moveCity[moveStart[city+1]-1]
+	private int [] moveStart;
+	private int [] moveCity;
+	private double [] moveReward;
 	private double [] valueFunction;
+	private City [][] neighbors; // neighbors[city][k] is the city of the move moveStart[city]+k
+	private byte [] policy; // the neighbour to move to in each state, -1 to pick up the task
 	private boolean dummy1;
 	private boolean dummy2;
 	private int compt;
@@ -39,16 +60,23 @@ public class ReactiveTemplate implements ReactiveBehavior {
 		Double discount = agent.readProperty("discount-factor", Double.class,
 				0.95);
 
-		this.random = new Random();
+		// A fixed seed makes the random moves reproducible
+		this.random = new Random(agent.readProperty("seed", Long.class, System.nanoTime()));
 		this.pPickup = discount;
+		// Throws IllegalArgumentException if the solver is unknown
+		this.solver = Solver.valueOf(agent.readProperty("solver", String.class, "JACOBI").toUpperCase());
+		this.epsilon = agent.readProperty("epsilon", Double.class, 0.01);
+		this.threads = agent.readProperty("threads", Integer.class, 1);
 		this.cost_per_km = 5;
 		this.numActions = 0;
 		this.myAgent = agent;
 		this.myDistribution = td;
 		this.myTopology = topology;
-		this.rewardMatrix = rewardMatrix();
-		this.transitionMatrix = transitionMatrix();
+		this.distances = Distances.of(topology);
+		transitionMatrix();
+		rewardMatrix();
 		this.valueFunction = valueFunction();
+		this.policy = policyTable();
 		this.dummy1 = false;
 		this.dummy2 = false;
 		this.compt = 0;
@@ -93,26 +121,19 @@ public class ReactiveTemplate implements ReactiveBehavior {
 			return action;
 		}
 		else {
-			double [] policy = new double [2];
-			if (availableTask != null ) {
-				City currentCity = vehicle.getCurrentCity();
-				for(int a = 0; a<2; a++) {
-					policy[a] = rewardMatrix[currentCity.id][a];
-					for (int s_ = 0; s_<9; s_++) {
-						policy[a] += pPickup*transitionMatrix[currentCity.id][a][s_]*valueFunction[currentCity.id];
-					}
-				}
-				if (policy[0]>policy[1]) {
-					action = new Pickup(availableTask);
-				}
-				else {
+			int size = myTopology.size();
+			City currentCity = vehicle.getCurrentCity();
+			int s = currentCity.id*(size+1) + (availableTask == null ? size : availableTask.deliveryCity.id);
+			byte a = policy[s];
+			if (a == -1) {
+				action = new Pickup(availableTask);
+			}
+			else {
+				if (availableTask != null) {
 					compt += 1;
 					System.out.println("Number of tasks refused = " + compt);
-					action = new Move(currentCity.randomNeighbor(random));
 				}
-			} else {
-				City currentCity = vehicle.getCurrentCity();
-				action = new Move(currentCity.randomNeighbor(random));
+				action = new Move(neighbors[currentCity.id][a]);
 			}
 		
 			if (numActions >= 1) {
@@ -124,97 +145,454 @@ public class ReactiveTemplate implements ReactiveBehavior {
 		}
 	}
 	
-	public double [][] rewardMatrix(){
-		double [][] matrix = new double[9][2];
+	//The reward of the pickup of a task to each destination and of the move to each neighbour
+	public void rewardMatrix(){
 		List<City> Cities = myTopology.cities(); //The list of cities are given by ascending ID number
+		int size = myTopology.size();
+		
+		pickupReward = new double [size*size];
+		for (int i=0; i<size; i++) {
+			for (int d = 0; d<size; d++) {
+				if (i != d) {
+					pickupReward[i*size + d] = myDistribution.reward(Cities.get(i), Cities.get(d))-cost_per_km*distances.distance(i, d);
+				}
+			}
+		}
+		moveReward = new double [moveCity.length];
+		for (int i=0; i<size; i++) {
+			for (int k = moveStart[i]; k<moveStart[i+1]; k++) {
+				moveReward[k] = -cost_per_km*distances.distance(i, moveCity[k]);
+			}
+		}
+	}
 	
-		for (int s=0; s<9; s++) {
-			List<City> Neighbors = Cities.get(s).neighbors();
-			for (int j = 0; j<9; j++) {
-				//Calculate the average reward of taking the pickup action in this city
-				matrix[s][0] += myDistribution.probability(Cities.get(s), Cities.get(j))*(myDistribution.reward(Cities.get(s), Cities.get(j))-cost_per_km*Cities.get(s).distanceTo(Cities.get(j))); 
+	//The action chooses the next city, the task offered there is drawn from the task distribution.
+	//The moves only go to the neighbours so they are stored in compressed sparse rows.
+	public void transitionMatrix(){
+		List<City> Cities = myTopology.cities();
+		int size = myTopology.size();
+	
+		taskProbability = new double [size*size];
+		noTaskProbability = new double [size];
+		moveStart = new int [size+1];
+		for (int i=0; i<size; i++) {
+			noTaskProbability[i] = 1;
+			for (int d = 0; d<size; d++) {
+				taskProbability[i*size + d] = myDistribution.probability(Cities.get(i), Cities.get(d));
+				noTaskProbability[i] -= taskProbability[i*size + d];
+			}
+			moveStart[i+1] = moveStart[i] + Cities.get(i).neighbors().size();
+		}
+		
+		moveCity = new int [moveStart[size]];
+		neighbors = new City [size][];
+		for (int i=0; i<size; i++) {
+			List<City> Neighbors = Cities.get(i).neighbors();
+			if (Neighbors.size() > Byte.MAX_VALUE) {
+				throw new IllegalArgumentException("A city has more than " + Byte.MAX_VALUE + " neighbours");
 			}
+			neighbors[i] = Neighbors.toArray(new City [Neighbors.size()]);
 			for (int k = 0; k<Neighbors.size(); k++) {
-				//Calculate the reward (negative value) of not taking the pickup action and going in another city 
-				matrix[s][1] -= cost_per_km * (Cities.get(s).distanceTo(Neighbors.get(k)));
+				moveCity[moveStart[i] + k] = Neighbors.get(k).id;
 			}
-			matrix[s][1] = matrix[s][1]/Neighbors.size();
-		} 
-		return matrix;
+		}
 	}
 	
-	public double [][][] transitionMatrix(){
-		List<City> Cities;	
-		Cities = myTopology.cities();
+	//Solve the MDP with the selected solver. The next state only depends on the next city, so the
+	//solvers work with the expected value of arriving in each city (see arrival and backup).
+	public double [] valueFunction() {
+		long start = System.currentTimeMillis();
+		double [] value;
+		switch (solver) {
+		case JACOBI:
+			value = jacobi();
+			break;
+		case GAUSS_SEIDEL:
+			value = gaussSeidel();
+			break;
+		case PRIORITIZED:
+			value = prioritizedSweeping();
+			break;
+		case POLICY:
+			value = policyIteration();
+			break;
+		default:
+			throw new AssertionError("Should not happen.");
+		}
+		System.out.println("The " + solver + " solver took " + (System.currentTimeMillis() - start) + " ms");
 		int size = myTopology.size();
-		double sizeNeighbors = 0;
+		double [] noTask = new double [size];
+		for (int i = 0; i<size; i++) {
+			noTask[i] = value[i*(size+1) + size];
+		}
+		System.out.println("V(s) without task = " + Arrays.toString(noTask));
+		return value;
+	}
 	
-		double [][][]matrix = new double [size][2][size];
-
-		for (int i=0; i<size; i++) {
-			
-			sizeNeighbors = Cities.get(i).neighbors().size();
-			for (int j=0; j<2; j++) {
-				for (int k = 0; k<size; k++) {
-					
-					matrix[i][0][k] = myDistribution.probability(Cities.get(i), Cities.get(k));
-					
-					
-					if(!(Cities.get(i).hasNeighbor(Cities.get(k)))) {
-						matrix[i][1][k] = 0;
-					}
-					else {
-						matrix[i][1][k] = 1/sizeNeighbors;
-							
-					}
+	//Expected value of arriving in the city c : the task offered there is drawn from the task distribution
+	private double arrival(int c, double [] value) {
+		int size = myTopology.size();
+		double expected = noTaskProbability[c]*value[c*(size+1) + size];
+		for (int d = 0; d<size; d++) {
+			expected += taskProbability[c*size + d]*value[c*(size+1) + d];
+		}
+		return expected;
+	}
+	
+	//Bellman update of the states of the city i. The best move is the same for all the tasks offered there.
+	//Returns the largest change of a value.
+	private double backup(int i, double [] arrival, double [] value) {
+		int size = myTopology.size();
+		double bestMove = Double.NEGATIVE_INFINITY;
+		for (int k = moveStart[i]; k<moveStart[i+1]; k++) {
+			bestMove = Math.max(bestMove, moveReward[k] + pPickup*arrival[moveCity[k]]);
+		}
+		double diff = 0;
+		for (int d = 0; d<=size; d++) {
+			int s = i*(size+1) + d;
+			double v = bestMove;
+			if (d < size && d != i) {
+				v = Math.max(v, pickupReward[i*size + d] + pPickup*arrival[d]);
+			}
+			diff = Math.max(diff, Math.abs(v - value[s]));
+			value[s] = v;
+		}
+		return diff;
+	}
+	
+	//Value iteration with synchronous sweeps : the arrival values are computed from the last sweep
+	//(they are the read buffer) and then the states are updated. With threads > 1 both passes are
+	//split in ranges of cities on a fork-join pool, each range returns its largest change.
+	private double [] jacobi() {
+		if (threads > 1) {
+			return parallelJacobi();
+		}
+		int niter = 0;
+		int size = myTopology.size();
+		double [] value = new double [size*(size+1)];
+		Arrays.fill(value, 1);
+		double [] arrival = new double [size];
+		
+		double diff = Double.POSITIVE_INFINITY;
+		while (diff > epsilon) {
+			for (int c = 0; c<size; c++) {
+				arrival[c] = arrival(c, value);
+			}
+			diff = 0;
+			for (int i = 0; i<size; i++) {
+				diff = Math.max(diff, backup(i, arrival, value));
+			}
+			niter++;
+		}
+		System.out.println("V(s) converge after " + niter + " iterations");
+		return value;
+	}
+	
+	private double [] parallelJacobi() {
+		int niter = 0;
+		int size = myTopology.size();
+		double [] value = new double [size*(size+1)];
+		Arrays.fill(value, 1);
+		double [] arrival = new double [size];
+		
+		List<Callable<Double>> arrivals = new ArrayList<Callable<Double>>();
+		List<Callable<Double>> backups = new ArrayList<Callable<Double>>();
+		for (int t = 0; t<threads; t++) {
+			int from = size*t/threads;
+			int to = size*(t+1)/threads;
+			arrivals.add(() -> {
+				for (int c = from; c<to; c++) {
+					arrival[c] = arrival(c, value);
+				}
+				return 0.0;
+			});
+			backups.add(() -> {
+				double diff = 0;
+				for (int i = from; i<to; i++) {
+					diff = Math.max(diff, backup(i, arrival, value));
+				}
+				return diff;
+			});
+		}
+		
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			double diff = Double.POSITIVE_INFINITY;
+			while (diff > epsilon) {
+				// get() rethrows the failure of a part instead of backing up stale arrival values
+				for (Future<Double> part : pool.invokeAll(arrivals)) {
+					part.get();
+				}
+				diff = 0;
+				for (Future<Double> part : pool.invokeAll(backups)) {
+					diff = Math.max(diff, part.get());
 				}
-					
+				niter++;
 			}
-				
 		}
-
-		return matrix;
+		catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("The parallel value iteration was interrupted", exc);
+		}
+		catch (ExecutionException exc) {
+			throw new IllegalStateException("The parallel value iteration failed", exc.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+		System.out.println("V(s) converge after " + niter + " iterations on " + threads + " threads");
+		return value;
+	}
+	
+	//Value iteration in place : the arrival value of a city is updated as soon as its states are,
+	//so the next cities of the same sweep already use it
+	private double [] gaussSeidel() {
+		int niter = 0;
+		int size = myTopology.size();
+		double [] value = new double [size*(size+1)];
+		Arrays.fill(value, 1);
+		double [] arrival = new double [size];
+		for (int c = 0; c<size; c++) {
+			arrival[c] = arrival(c, value);
+		}
 		
+		double diff = Double.POSITIVE_INFINITY;
+		while (diff > epsilon) {
+			diff = 0;
+			for (int i = 0; i<size; i++) {
+				diff = Math.max(diff, backup(i, arrival, value));
+				arrival[i] = arrival(i, value);
+			}
+			niter++;
+		}
+		System.out.println("V(s) converge after " + niter + " iterations");
+		return value;
 	}
 	
-	public double [] valueFunction() {
-		int niter =0;
-		double epsilon = 0.01;
+	//Prioritized sweeping : the city with the largest bound of its Bellman residual is updated first.
+	//When the arrival value of a city changes by delta, the residual of the cities leading to it
+	//(by a move or a task) grows by at most discount*delta. It stops when all the bounds are below epsilon.
+	private double [] prioritizedSweeping() {
 		int size = myTopology.size();
-		double [] old_value = new double [size];
-		double [] diff = new double [size];
+		double [] value = new double [size*(size+1)];
+		Arrays.fill(value, 1);
+		double [] arrival = new double [size];
+		for (int c = 0; c<size; c++) {
+			arrival[c] = arrival(c, value);
+		}
+		
+		// the predecessors of a city in compressed sparse rows
+		int [] predStart = new int [size+1];
+		boolean [] leads = new boolean [size*size]; // leads[j*size + i] if an action of j goes to i
+		for (int j = 0; j<size; j++) {
+			for (int i = 0; i<size; i++) {
+				leads[j*size + i] = taskProbability[j*size + i] > 0;
+			}
+			for (int k = moveStart[j]; k<moveStart[j+1]; k++) {
+				leads[j*size + moveCity[k]] = true;
+			}
+		}
+		for (int i = 0; i<size; i++) {
+			predStart[i+1] = predStart[i];
+			for (int j = 0; j<size; j++) {
+				if (leads[j*size + i]) {
+					predStart[i+1]++;
+				}
+			}
+		}
+		int [] predCity = new int [predStart[size]];
 		for (int i = 0; i<size; i++) {
-			old_value[i] = 1;
-			diff[i] = 10000;
-		}
-		double [] new_value = new double [size];
-		
-		double [][] qArray = new double[size][2];
-		while (Arrays.stream(diff).max().getAsDouble() > epsilon) {
-			for (int s = 0; s<9; s++) {
-				for (int a = 0; a<2; a++) {
-					qArray[s][a] = rewardMatrix[s][a];
-					for (int s_ = 0; s_<9; s_++) {
-						qArray[s][a] += pPickup*transitionMatrix[s][a][s_]*old_value[s_];
-						
+			int k = predStart[i];
+			for (int j = 0; j<size; j++) {
+				if (leads[j*size + i]) {
+					predCity[k++] = j;
+				}
+			}
+		}
+		
+		ResidualHeap heap = new ResidualHeap(size);
+		int backups = 0;
+		while (heap.maxPriority() > epsilon) {
+			int i = heap.top();
+			heap.set(i, 0);
+			backup(i, arrival, value);
+			double old = arrival[i];
+			arrival[i] = arrival(i, value);
+			double delta = pPickup*Math.abs(arrival[i] - old);
+			backups++;
+			if (delta == 0) {
+				continue;
+			}
+			for (int k = predStart[i]; k<predStart[i+1]; k++) {
+				int j = predCity[k];
+				heap.set(j, heap.priority[j] + delta);
+			}
+		}
+		System.out.println("V(s) converge after " + backups + " backups (" + (backups / (double) size) + " sweeps)");
+		return value;
+	}
+	
+	//Max-heap of the cities by the bound of their Bellman residual, all the cities start at infinity
+	class ResidualHeap {
+		double [] priority; // priority of each city
+		int [] heap; // the cities
+		int [] position; // position of each city in heap
+		
+		ResidualHeap(int size) {
+			priority = new double [size];
+			heap = new int [size];
+			position = new int [size];
+			for (int c = 0; c<size; c++) {
+				priority[c] = Double.POSITIVE_INFINITY;
+				heap[c] = c;
+				position[c] = c;
+			}
+		}
+		
+		double maxPriority() {
+			return (heap.length == 0) ? 0 : priority[heap[0]];
+		}
+		
+		int top() {
+			return heap[0];
+		}
+		
+		void set(int city, double p) {
+			priority[city] = p;
+			int i = position[city];
+			// up
+			while (i > 0 && priority[heap[(i-1)/2]] < p) {
+				move(heap[(i-1)/2], i);
+				i = (i-1)/2;
+			}
+			// down
+			while (2*i+1 < heap.length) {
+				int child = 2*i+1;
+				if (child+1 < heap.length && priority[heap[child+1]] > priority[heap[child]]) {
+					child++;
+				}
+				if (priority[heap[child]] <= p) {
+					break;
+				}
+				move(heap[child], i);
+				i = child;
+			}
+			move(city, i);
+		}
+		
+		private void move(int city, int i) {
+			heap[i] = city;
+			position[city] = i;
+		}
+	}
+	
+	//Policy iteration. A policy is evaluated exactly on the arrival values : arrival = r + discount*Q*arrival
+	//where Q[c][n] is the probability to go from c to n, solved by Gaussian elimination (the matrix
+	//I - discount*Q is diagonally dominant). The policy is then improved until it is stable.
+	private double [] policyIteration() {
+		int size = myTopology.size();
+		int [] choice = new int [size*(size+1)]; // the move index of each state, -1 for the pickup
+		for (int i = 0; i<size; i++) {
+			for (int d = 0; d<=size; d++) {
+				choice[i*(size+1) + d] = moveStart[i];
+			}
+		}
+		double [] arrival = new double [size];
+		double [] value = new double [size*(size+1)];
+		int niter = 0;
+		boolean stable = false;
+		while (!stable) {
+			// evaluation
+			double [] matrix = new double [size*size];
+			double [] r = new double [size];
+			for (int c = 0; c<size; c++) {
+				matrix[c*size + c] = 1;
+				for (int d = 0; d<=size; d++) {
+					double p = (d < size) ? taskProbability[c*size + d] : noTaskProbability[c];
+					int a = choice[c*(size+1) + d];
+					int next = (a == -1) ? d : moveCity[a];
+					r[c] += p*((a == -1) ? pickupReward[c*size + d] : moveReward[a]);
+					matrix[c*size + next] -= pPickup*p;
+				}
+			}
+			for (int k = 0; k<size; k++) {
+				for (int c = k+1; c<size; c++) {
+					double factor = matrix[c*size + k]/matrix[k*size + k];
+					if (factor == 0) {
+						continue;
 					}
+					for (int j = k; j<size; j++) {
+						matrix[c*size + j] -= factor*matrix[k*size + j];
+					}
+					r[c] -= factor*r[k];
 				}
-				//System.out.println("test   "+Arrays.stream(qArray[s]).max().getAsDouble());
-				new_value[s] = Arrays.stream(qArray[s]).max().getAsDouble();
 			}
-			for (int i=0; i<size; i++) {
-				//System.out.println(i+"  old " +old_value[i]+"  new " +new_value[i]);
-				diff[i] = Math.abs(new_value[i] - old_value[i]);
+			for (int c = size-1; c>=0; c--) {
+				double sum = r[c];
+				for (int j = c+1; j<size; j++) {
+					sum -= matrix[c*size + j]*arrival[j];
+				}
+				arrival[c] = sum/matrix[c*size + c];
 			}
+			
+			// improvement, the action only changes if it is strictly better
+			stable = true;
 			for (int i = 0; i<size; i++) {
-				old_value[i] = new_value[i];
+				int bestMove = moveStart[i];
+				for (int k = moveStart[i]; k<moveStart[i+1]; k++) {
+					if (moveReward[k] + pPickup*arrival[moveCity[k]] > moveReward[bestMove] + pPickup*arrival[moveCity[bestMove]]) {
+						bestMove = k;
+					}
+				}
+				for (int d = 0; d<=size; d++) {
+					int s = i*(size+1) + d;
+					int a = bestMove;
+					if (d < size && d != i && pickupReward[i*size + d] + pPickup*arrival[d] > moveReward[a] + pPickup*arrival[moveCity[a]]) {
+						a = -1;
+					}
+					int current = choice[s];
+					double qCurrent = (current == -1) ? pickupReward[i*size + d] + pPickup*arrival[d] : moveReward[current] + pPickup*arrival[moveCity[current]];
+					double qBest = (a == -1) ? pickupReward[i*size + d] + pPickup*arrival[d] : moveReward[a] + pPickup*arrival[moveCity[a]];
+					if (qBest > qCurrent + 1e-9) {
+						choice[s] = a;
+						stable = false;
+					}
+				}
 			}
-
 			niter++;
 		}
-		System.out.println("V(s) converge after " + niter + " iterations");
-		System.out.println("V(s) = " + Arrays.toString(new_value));
-		return new_value;
+		for (int i = 0; i<size; i++) {
+			backup(i, arrival, value);
+		}
+		System.out.println("The policy is stable after " + niter + " iterations");
+		return value;
+	}
+	
+	//The best action of each state for the converged value function, computed once so that act only
+	//reads it : the index of the neighbour to move to, or -1 to pick up the task
+	public byte [] policyTable() {
+		int size = myTopology.size();
+		byte [] table = new byte [size*(size+1)];
+		double [] arrival = new double [size];
+		for (int c = 0; c<size; c++) {
+			arrival[c] = arrival(c, valueFunction);
+		}
+		for (int i = 0; i<size; i++) {
+			byte bestMove = 0;
+			double bestQ = Double.NEGATIVE_INFINITY;
+			for (int k = moveStart[i]; k<moveStart[i+1]; k++) {
+				double q = moveReward[k] + pPickup*arrival[moveCity[k]];
+				if (q > bestQ) {
+					bestQ = q;
+					bestMove = (byte) (k - moveStart[i]);
+				}
+			}
+			for (int d = 0; d<=size; d++) {
+				boolean pickup = d < size && d != i && pickupReward[i*size + d] + pPickup*arrival[d] > bestQ;
+				table[i*(size+1) + d] = pickup ? -1 : bestMove;
+			}
+		}
+		return table;
 	}
 		
 	